@@ -0,0 +1,63 @@
+package pl.project13.intellij.kanbanery;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import pl.project13.janbanery.config.DefaultConfiguration;
+
+/**
+ * Talks to a Kanbanery API served from somewhere else than kanbanery.com, like a local stand-in server.
+ * There are no per-workspace subdomains there, so the workspace is the first path segment: {@code <base>/<workspace>/api/v1/}.
+ *
+ * @author Konrad Malawski
+ */
+class ApiUrlConfiguration extends DefaultConfiguration {
+
+  /**
+   * system property overriding the base url of all repositories, handy for runs against a stand-in server
+   */
+  static final String BASE_URL_PROPERTY = "kanbanery.api.url";
+
+  private final String myBaseUrl;
+
+  ApiUrlConfiguration(@NotNull String baseUrl, @NotNull String apiKey) {
+    super(apiKey);
+    myBaseUrl = baseUrl;
+  }
+
+  ApiUrlConfiguration(@NotNull String baseUrl, @NotNull String user, @NotNull String password) {
+    super(user, password);
+    myBaseUrl = baseUrl;
+  }
+
+  @Override
+  public String getApiUrl() {
+    return myBaseUrl + "api/v1/";
+  }
+
+  @Override
+  public String getApiUrl(String workspaceName) {
+    return myBaseUrl + workspaceName + "/api/v1/";
+  }
+
+  @Override
+  public String getApiUrl(String workspaceName, Long projectId) {
+    return getApiUrl(workspaceName) + "projects/" + projectId + "/";
+  }
+
+  /**
+   * @return the base url to use (with a trailing slash), null for kanbanery.com
+   */
+  @Nullable
+  static String baseUrl(@Nullable String configured) {
+    String baseUrl = System.getProperty(BASE_URL_PROPERTY);
+    if (baseUrl == null || baseUrl.trim().isEmpty()) {
+      baseUrl = configured;
+    }
+    if (baseUrl == null || baseUrl.trim().isEmpty()) {
+      return null;
+    }
+
+    baseUrl = baseUrl.trim();
+    return baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+  }
+}
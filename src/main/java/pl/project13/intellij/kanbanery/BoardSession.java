@@ -0,0 +1,1294 @@
+package pl.project13.intellij.kanbanery;
+
+import com.intellij.notification.Notification;
+import com.intellij.notification.NotificationType;
+import com.intellij.notification.Notifications;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.Consumer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import pl.project13.intellij.kanbanery.cache.Digests;
+import pl.project13.intellij.kanbanery.cache.ExpiringLruCache;
+import pl.project13.intellij.kanbanery.metrics.KanbaneryMetrics;
+import pl.project13.intellij.kanbanery.model.CommentsProvider;
+import pl.project13.intellij.kanbanery.model.KanbaneryTask;
+import pl.project13.intellij.kanbanery.sync.BackgroundExecutor;
+import pl.project13.intellij.kanbanery.sync.BoardFiles;
+import pl.project13.intellij.kanbanery.sync.BoardMetadata;
+import pl.project13.intellij.kanbanery.sync.BoardSnapshot;
+import pl.project13.intellij.kanbanery.sync.BoardSyncScheduler;
+import pl.project13.intellij.kanbanery.sync.CircuitBreaker;
+import pl.project13.intellij.kanbanery.sync.CircuitOpenException;
+import pl.project13.intellij.kanbanery.sync.CommentCache;
+import pl.project13.intellij.kanbanery.sync.ConditionalGet;
+import pl.project13.intellij.kanbanery.sync.HttpStatusException;
+import pl.project13.intellij.kanbanery.sync.MetadataCache;
+import pl.project13.intellij.kanbanery.sync.SingleFlight;
+import pl.project13.intellij.kanbanery.sync.TaskStateQueue;
+import pl.project13.intellij.kanbanery.sync.TaskStore;
+import pl.project13.intellij.kanbanery.sync.TaskStream;
+import pl.project13.intellij.kanbanery.vcs.CommitComments;
+import pl.project13.janbanery.core.Janbanery;
+import pl.project13.janbanery.core.JanbaneryFactory;
+import pl.project13.janbanery.core.flow.TaskMarkFlow;
+import pl.project13.janbanery.exceptions.ProjectNotFoundException;
+import pl.project13.janbanery.exceptions.kanbanery.InternalServerErrorKanbaneryException;
+import pl.project13.janbanery.exceptions.kanbanery.UnauthorizedKanbaneryException;
+import pl.project13.janbanery.resources.Column;
+import pl.project13.janbanery.resources.Comment;
+import pl.project13.janbanery.resources.Task;
+import pl.project13.janbanery.resources.TaskType;
+import pl.project13.janbanery.resources.User;
+import pl.project13.janbanery.resources.Workspace;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.intellij.openapi.util.text.StringUtil.isNotEmpty;
+
+/**
+ * Everything one account needs to work with one board: the Janbanery session, the local copy of the board and its caches,
+ * the background sync and the queue of state changes. Shared by all {@link KanbaneryRepository}s (clones, other project
+ * windows) configured the same way, through the {@link BoardSessions} registry; it never refers back to a repository.
+ *
+ * @author Konrad Malawski
+ */
+class BoardSession {
+
+  private final static Logger LOG = Logger.getInstance("#pl.project13.intellij.kanbanery.BoardSession");
+
+  private static final long METADATA_REFRESH_MILLIS = TimeUnit.MINUTES.toMillis(15);
+  private static final long METADATA_WAIT_SECONDS = 5;
+
+  /**
+   * how long the tasks found for a query are handed to anyone asking the same right after
+   */
+  private static final long ISSUES_REUSE_MILLIS = 1000;
+
+  /**
+   * how long a sync waits for the additional boards, slower ones finish (and show up) in the background
+   */
+  private static final long ADDITIONAL_BOARDS_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  /**
+   * how many streamed tasks are added to the store at once, before checking if there are enough matches
+   */
+  private static final int STREAM_BATCH_SIZE = 100;
+
+  /**
+   * no call to Kanbanery (logging in included) may take longer than this, whatever Janbanery's http client thinks
+   */
+  private static final long CALL_TIMEOUT_SECONDS = 20;
+
+  private static final String NOTIFICATION_GROUP = "Kanbanery";
+
+  private static final ExecutorService ourBoardFetchers = BackgroundExecutor.newBoundedPool("Kanbanery boards", 4);
+
+  /**
+   * Janbanery calls run here, so the caller can stop waiting for them after {@link #CALL_TIMEOUT_SECONDS}.
+   * The innermost layer of the pools (see {@link BackgroundExecutor}), with a thread for every thread of the layers above
+   * that may be waiting for a call (29 of them), so a call never waits for a thread and times out in the queue
+   */
+  private static final ExecutorService ourCalls = BackgroundExecutor.newBoundedPool("Kanbanery calls", 32);
+
+  private final String myApiKey;
+  private final String myUsername;
+  private final String myPassword;
+  @Nullable
+  private final String myBaseUrl;
+  private final String myWorkspaceName;
+  private final String myProjectName;
+
+  private volatile String myAdditionalBoards = "";
+
+  /**
+   * guards {@link #myJanbanery}, so concurrent callers share one login
+   */
+  private final Object mySessionLock = new Object();
+  private Janbanery myJanbanery;
+  private final AtomicInteger mySessionsCreated = new AtomicInteger();
+  private final AtomicBoolean myLoginFailureNotified = new AtomicBoolean();
+
+  /**
+   * set by {@link #close()}, a closed session never logs in again
+   */
+  private volatile boolean myClosed;
+
+  private final CircuitBreaker myBreaker;
+
+  /**
+   * task types, users and columns of the board, always replaced as a whole
+   */
+  private final MetadataCache myMetadata = new MetadataCache(new MetadataCache.Loader() {
+    @NotNull
+    @Override
+    public BoardMetadata load() throws Exception {
+      List<TaskType> taskTypes;
+      List<User> users;
+      List<Column> columns;
+
+      KanbaneryApi api = new KanbaneryApi(myBaseUrl);
+      ConditionalGet http = conditionalGet(api);
+      if (http != null) {
+        BoardMetadata current = myMetadata.get();
+        String taskTypesUrl = api.projectUrl(myWorkspaceName, myStreamProjectId, "task_types");
+        String usersUrl = api.projectUrl(myWorkspaceName, myStreamProjectId, "users");
+        String columnsUrl = api.projectUrl(myWorkspaceName, myStreamProjectId, "columns");
+        if (current.getVersion() == 0) {
+          // nothing to fall back to on a 304
+          http.forget(taskTypesUrl);
+          http.forget(usersUrl);
+          http.forget(columnsUrl);
+        }
+
+        taskTypes = conditionally(http, KanbaneryMetrics.TASK_TYPES, taskTypesUrl, ConditionalGet.TASK_TYPES);
+        if (taskTypes == null) {
+          taskTypes = new ArrayList<TaskType>(current.getTaskTypes().values());
+        }
+        users = conditionally(http, KanbaneryMetrics.USERS, usersUrl, ConditionalGet.USERS_WITH_NOBODY);
+        if (users == null) {
+          users = new ArrayList<User>(current.getUsers().values());
+        }
+        columns = conditionally(http, KanbaneryMetrics.COLUMNS, columnsUrl, ConditionalGet.COLUMNS);
+        if (columns == null) {
+          columns = new ArrayList<Column>(current.getColumns().values());
+        }
+      } else {
+        taskTypes = withJanbanery(KanbaneryMetrics.TASK_TYPES, new JanbaneryCall<List<TaskType>>() {
+          @Override
+          public List<TaskType> call(Janbanery janbanery) throws Exception {
+            return janbanery.taskTypes().all();
+          }
+        });
+        users = withJanbanery(KanbaneryMetrics.USERS, new JanbaneryCall<List<User>>() {
+          @Override
+          public List<User> call(Janbanery janbanery) throws Exception {
+            return janbanery.users().allWithNobody();
+          }
+        });
+        columns = withJanbanery(KanbaneryMetrics.COLUMNS, new JanbaneryCall<List<Column>>() {
+          @Override
+          public List<Column> call(Janbanery janbanery) throws Exception {
+            return janbanery.columns().all();
+          }
+        });
+      }
+      return new BoardMetadata(taskTypes, users, columns, 0);
+    }
+  });
+
+  private final TaskStore myTaskStore = new TaskStore();
+
+  /**
+   * the task combo box, commit message and task info often ask for the same thing at the same time
+   */
+  private final SingleFlight<String, List<KanbaneryTask>> myIssueFlights = new SingleFlight<String, List<KanbaneryTask>>(ISSUES_REUSE_MILLIS);
+  private final SingleFlight<Long, KanbaneryTask> myTaskFlights = new SingleFlight<Long, KanbaneryTask>(0);
+
+  /**
+   * tasks recently shown or looked up, the IDE asks for the active task over and over again
+   */
+  private final ExpiringLruCache<Long, KanbaneryTask> myTaskCache = new ExpiringLruCache<Long, KanbaneryTask>(256, TimeUnit.MINUTES.toMillis(5));
+
+  /**
+   * comments are not part of the task listing, they're fetched when a task's details are shown
+   */
+  private final CommentCache myComments = new CommentCache(new CommentCache.Fetcher() {
+    @NotNull
+    @Override
+    public List<Comment> fetch(final long taskId) throws Exception {
+      final KanbaneryBoard board = boardOf(taskId);
+      if (board != null) {
+        return board.comments(taskId);
+      }
+
+      final Task task = new Task();
+      task.setId(taskId);
+
+      return withJanbanery(KanbaneryMetrics.COMMENTS, new JanbaneryCall<List<Comment>>() {
+        @Override
+        public List<Comment> call(Janbanery janbanery) throws Exception {
+          return janbanery.comments().of(task).all();
+        }
+      });
+    }
+  }, myMetadata);
+
+  /**
+   * the comments tasks are given: the Kanbanery ones, then the commits mentioning the task
+   */
+  private final CommentsProvider myTaskComments = new CommitComments(myComments);
+
+  {
+    // whatever a sync touched must not be served from the cache anymore
+    myTaskStore.setListener(new TaskStore.Listener() {
+      @Override
+      public void taskChanged(long id) {
+        myTaskCache.invalidate(id);
+        myComments.invalidate(id);
+      }
+    });
+    myTaskStore.setCommentsProvider(myTaskComments);
+  }
+
+  private volatile boolean mySnapshotChecked;
+
+  private final BoardSyncScheduler mySyncScheduler;
+
+  private List<KanbaneryBoard> myBoards = Collections.emptyList();
+  private String myBoardsSpec = "";
+
+  /**
+   * guards {@link #myStateQueue} only, so queueing a state change never waits for anything else the session does
+   */
+  private final Object myStateQueueLock = new Object();
+  private TaskStateQueue myStateQueue;
+
+  /**
+   * what {@link #streamIssues} and the {@link ConditionalGet conditional requests} need besides the session, looked up once;
+   * published together under {@link #myStreamLock}, which is never held while talking to Kanbanery
+   */
+  private final Object myStreamLock = new Object();
+  private boolean myStreamPrepared;
+  private volatile Long myStreamProjectId;
+  private volatile String myStreamApiKey;
+  private volatile ConditionalGet myHttp;
+
+  /**
+   * the workspaces last read through {@link #myHttp}, what a 304 for them means
+   */
+  private volatile List<Workspace> myWorkspaces;
+
+  BoardSession(@NotNull String apiKey, @NotNull String username, @NotNull String password, @Nullable String baseUrl,
+               @NotNull String workspaceName, @NotNull String projectName) {
+    myApiKey = apiKey;
+    myUsername = username;
+    myPassword = password;
+    myBaseUrl = baseUrl;
+    myWorkspaceName = workspaceName;
+    myProjectName = projectName;
+
+    myBreaker = new CircuitBreaker("Kanbanery (" + getBoard() + ")", new CircuitBreaker.Listener() {
+      @Override
+      public void opened(@Nullable Throwable cause) {
+        notifyUser("Kanbanery is unreachable",
+                   "Showing the tasks of " + getBoard() + " known so far, they will be refreshed once Kanbanery answers again."
+                   + (cause != null && cause.getMessage() != null ? "<br>" + cause.getMessage() : ""));
+      }
+
+      @Override
+      public void closed() {
+        mySyncScheduler.syncNow();
+      }
+    });
+
+    mySyncScheduler = new BoardSyncScheduler("Kanbanery: " + myWorkspaceName + " / " + myProjectName, new BoardSyncScheduler.Sync() {
+      @Override
+      public boolean sync() throws Exception {
+        return syncTasks();
+      }
+    });
+    if (isConfigured()) {
+      registerGauges();
+    }
+  }
+
+  /**
+   * Applies the settings of the repository using the session, the last one to ask wins.
+   */
+  void configure(@NotNull String additionalBoards, int syncIntervalSeconds, int maxSyncBackoffSeconds) {
+    myAdditionalBoards = additionalBoards;
+    mySyncScheduler.setIntervalMillis(TimeUnit.SECONDS.toMillis(syncIntervalSeconds));
+    mySyncScheduler.setMaxBackoffMillis(TimeUnit.SECONDS.toMillis(maxSyncBackoffSeconds));
+  }
+
+  @NotNull
+  String getBoard() {
+    return myWorkspaceName + "/" + myProjectName;
+  }
+
+  /**
+   * @return what tells this session's account and api url apart, for keying the board's files
+   */
+  private String account() {
+    return KanbaneryRepository.accountFingerprint(myApiKey, myUsername, myBaseUrl);
+  }
+
+  /**
+   * @return the file of this board with the given extension; one an earlier version named after the credentials
+   *         (password included) is moved over, or deleted if there is a current one already
+   */
+  private File boardFile(String extension) {
+    File file = BoardFiles.fileFor(account(), myWorkspaceName, myProjectName, extension);
+    File legacy = BoardFiles.fileFor(KanbaneryRepository.credentialsFingerprint(myApiKey, myUsername, myPassword, myBaseUrl),
+                                     myWorkspaceName, myProjectName, extension);
+    if (legacy.isFile() && (file.exists() || !legacy.renameTo(file))) {
+      FileUtil.delete(legacy);
+    }
+    return file;
+  }
+
+  private boolean isConfigured() {
+    boolean hasCredentials = (isNotEmpty(myUsername) && isNotEmpty(myPassword)) || isNotEmpty(myApiKey);
+    boolean hasProject = isNotEmpty(myWorkspaceName) && isNotEmpty(myProjectName);
+
+    return hasCredentials && hasProject;
+  }
+
+  /**
+   * Served from the local copy of the board, which is kept fresh by the {@link BoardSyncScheduler}.
+   * Only the very first call (no snapshot on disk either) has to wait for Kanbanery, and only until enough tasks were streamed.
+   * While Kanbanery is unreachable the last known tasks are served ({@link #isStale()}), without waiting for it.
+   */
+  @NotNull
+  List<KanbaneryTask> getIssues(@Nullable final String request, final int max, final long since) throws Exception {
+    if (!myBreaker.isClosed() && myBreaker.isTrialDue()) {
+      // revalidate in the background, the caller gets what we have right away
+      mySyncScheduler.syncNow();
+    }
+
+    String key = request + '\u0000' + max + '\u0000' + since;
+    List<KanbaneryTask> tasks;
+    try {
+      tasks = myIssueFlights.execute(key, new Callable<List<KanbaneryTask>>() {
+        @Override
+        public List<KanbaneryTask> call() throws Exception {
+          return searchOrLoad(request, max, since);
+        }
+      });
+    } finally {
+      // only now, so a cold start doesn't download the board in the background too
+      mySyncScheduler.touch();
+    }
+
+    for (KanbaneryTask task : tasks) {
+      myTaskCache.put(task.getTaskId(), task);
+    }
+    return tasks;
+  }
+
+  /**
+   * Searches the local copy of the board, filling it first if there is nothing local yet (not even a snapshot).
+   */
+  private List<KanbaneryTask> searchOrLoad(@Nullable String request, int max, long since) throws Exception {
+    if (!myTaskStore.isSynced() && myTaskStore.size() == 0 && !loadSnapshot() && myBreaker.isClosed()) {
+      try {
+        if (streamIssues(request, max, since, null) == null) {
+          syncTasks();
+          mySyncScheduler.synced();
+        }
+      } catch (Exception e) {
+        if (myTaskStore.size() == 0) {
+          throw e;
+        }
+        LOG.info("Unable to sync " + getBoard() + ", serving the tasks known so far: " + e.getMessage());
+      }
+    }
+    if (myTaskStore.size() == 0 && !myBreaker.isClosed()) {
+      throw new CircuitOpenException("Kanbanery is unreachable and no tasks of " + getBoard() + " are known yet");
+    }
+
+    KanbaneryMetrics.Timer search = KanbaneryMetrics.getInstance().start(KanbaneryMetrics.LOCAL_SEARCH);
+    List<KanbaneryTask> found = myTaskStore.search(request, max, since);
+    search.success(found.size());
+    return found;
+  }
+
+  /**
+   * Syncs this session's board, and all additional boards in parallel.
+   *
+   * @return true if anything changed on any of the boards since the last sync
+   */
+  private boolean syncTasks() throws Exception {
+    List<Future<Boolean>> additional = new ArrayList<Future<Boolean>>();
+    for (final KanbaneryBoard board : additionalBoards()) {
+      additional.add(ourBoardFetchers.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          boolean changed = board.sync(myTaskStore);
+          applyPendingStates();
+          return changed;
+        }
+      }));
+    }
+
+    boolean anyChanged = false;
+    List<Task> all = fetchTasks();
+    BoardMetadata metadata = myMetadata.await(METADATA_WAIT_SECONDS, TimeUnit.SECONDS);
+    if (all != null) {
+      anyChanged = mergeTasks(all, metadata) > 0;
+    } else if (myTaskStore.getMetadataVersion(getBoard()) != metadata.getVersion()) {
+      // the tasks did not change, but what they refer to did (or was not loaded yet when they were merged)
+      LOG.debug("Tasks of " + getBoard() + " did not change since the last sync, applying the new task types");
+      anyChanged = mergeTasks(myTaskStore.resources(getBoard()), metadata) > 0;
+    } else {
+      LOG.debug("Tasks of " + getBoard() + " did not change since the last sync");
+    }
+
+    long deadline = System.currentTimeMillis() + ADDITIONAL_BOARDS_WAIT_MILLIS;
+    for (Future<Boolean> board : additional) {
+      try {
+        anyChanged |= board.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        LOG.info("An additional board is slow to sync, its tasks will show up once it's done");
+      } catch (ExecutionException e) {
+        LOG.warn("Unable to sync an additional board: " + e.getCause().getMessage());
+      }
+    }
+    return anyChanged;
+  }
+
+  /**
+   * Fetches all tasks of this session's board, conditionally if possible.
+   *
+   * @return the tasks, null if they did not change since the last time they were fetched
+   */
+  @Nullable
+  private List<Task> fetchTasks() throws Exception {
+    KanbaneryApi api = new KanbaneryApi(myBaseUrl);
+    ConditionalGet http = conditionalGet(api);
+    if (http != null) {
+      String url = api.tasksUrl(myWorkspaceName, myStreamProjectId);
+      if (!myTaskStore.isSynced()) {
+        // the store does not hold a complete listing, a 304 would leave it that way
+        http.forget(url);
+      }
+      return conditionally(http, KanbaneryMetrics.TASKS_ALL, url, ConditionalGet.TASKS);
+    }
+
+    return withJanbanery(KanbaneryMetrics.TASKS_ALL, new JanbaneryCall<List<Task>>() {
+      @Override
+      public List<Task> call(Janbanery janbanery) throws Exception {
+        return janbanery.tasks().all();
+      }
+    });
+  }
+
+  /**
+   * Merges a full listing of this session's board into the store and saves the snapshot if anything changed.
+   *
+   * @return how many tasks changed
+   */
+  private int mergeTasks(List<Task> all, BoardMetadata metadata) {
+    KanbaneryMetrics.Timer merge = KanbaneryMetrics.getInstance().start(KanbaneryMetrics.LOCAL_MERGE);
+    int changed = myTaskStore.merge(all, metadata, getBoard());
+    merge.success(all.size());
+
+    applyPendingStates();
+    LOG.debug("Synced " + all.size() + " tasks, " + changed + " changed since last sync");
+
+    if (changed > 0) {
+      saveSnapshot();
+    }
+    return changed;
+  }
+
+  /**
+   * The boards may not know about our changes yet, don't let a merge revert them locally.
+   */
+  private void applyPendingStates() {
+    for (Map.Entry<Long, Boolean> pending : stateQueue().pending().entrySet()) {
+      myTaskStore.markReadyToPull(pending.getKey(), pending.getValue());
+    }
+  }
+
+  /**
+   * Streams this session's board into the store, stopping as soon as {@code max} tasks match the request.
+   * What was not read yet is left to a full sync in the background. Meant for when there is nothing local to answer from.
+   *
+   * @param partialResults gets the best matches so far after every {@link #STREAM_BATCH_SIZE} tasks, may be null
+   * @return the matching tasks, null if the board could not be streamed (a regular sync should be done instead)
+   */
+  @Nullable
+  List<KanbaneryTask> streamIssues(@Nullable String request, int max, long since,
+                                   @Nullable Consumer<List<KanbaneryTask>> partialResults) {
+    if (!isConfigured() || !myBreaker.isClosed()) {
+      return null;
+    }
+
+    try {
+      KanbaneryApi api = new KanbaneryApi(myBaseUrl);
+      if (!prepareStream(api)) {
+        return null;
+      }
+
+      final StreamCollector collector = new StreamCollector(request, max, since, partialResults);
+      final TaskStream stream = new TaskStream(api.tasksUrl(myWorkspaceName, myStreamProjectId), api.authHeaders(myStreamApiKey));
+      boolean complete = guarded(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          return stream.read(collector);
+        }
+      });
+
+      if (complete) {
+        mergeTasks(collector.myAll, myMetadata.get());
+        mySyncScheduler.synced();
+      } else {
+        collector.flush();
+        LOG.debug("Stopped streaming after " + collector.myAll.size() + " tasks, the rest is synced in the background");
+        mySyncScheduler.syncNow();
+      }
+      return myTaskStore.search(request, max, since);
+    } catch (Exception e) {
+      // already told the breaker about it where it failed
+      LOG.info("Unable to stream tasks, falling back to a full sync: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Looks up the project id and (for user and password logins) the api key, once per session.
+   * Threads racing to do it the first time all look them up, the first one to finish publishes what it found.
+   */
+  private boolean prepareStream(final KanbaneryApi api) throws Exception {
+    synchronized (myStreamLock) {
+      if (myStreamPrepared) {
+        return myStreamProjectId != null;
+      }
+    }
+
+    Long projectId = null;
+    for (Workspace workspace : getWorkspaces()) {
+      if (myWorkspaceName.equals(workspace.getName())) {
+        for (pl.project13.janbanery.resources.Project project : workspace.getProjects()) {
+          if (myProjectName.equals(project.getName())) {
+            projectId = project.getId();
+          }
+        }
+      }
+    }
+    String apiKey = isNotEmpty(myApiKey) ? myApiKey : guarded(new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        return api.fetchApiKey(myUsername, myPassword);
+      }
+    });
+
+    synchronized (myStreamLock) {
+      if (!myStreamPrepared) {
+        myStreamProjectId = projectId;
+        myStreamApiKey = apiKey;
+        myHttp = new ConditionalGet(api.authHeaders(apiKey));
+        myStreamPrepared = true;
+      }
+      return myStreamProjectId != null;
+    }
+  }
+
+  /**
+   * @return what to make conditional requests for this session's board with, null if they are not possible
+   * (Janbanery is used instead then)
+   */
+  @Nullable
+  private ConditionalGet conditionalGet(KanbaneryApi api) {
+    if (!isConfigured()) {
+      return null;
+    }
+    try {
+      return prepareStream(api) ? myHttp : null;
+    } catch (Exception e) {
+      LOG.debug("Not making conditional requests for now: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Like {@link #withJanbanery}, for a request made without Janbanery.
+   *
+   * @return the resource, null if it did not change since it was last read
+   */
+  @Nullable
+  private <T> T conditionally(final ConditionalGet http, final String operation, final String url,
+                              final ConditionalGet.Parser<T> parser) throws Exception {
+    return guarded(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        return http.get(operation, url, parser);
+      }
+    });
+  }
+
+  /**
+   * Adds the streamed tasks to the store batch by batch, until there are enough matches.
+   */
+  private class StreamCollector implements TaskStream.Handler {
+    private final String myRequest;
+    private final int myMax;
+    private final long mySince;
+    private final Consumer<List<KanbaneryTask>> myPartialResults;
+    private final BoardMetadata myMetadataSoFar = myMetadata.get();
+
+    private final List<Task> myAll = new ArrayList<Task>();
+    private final List<Task> myBatch = new ArrayList<Task>();
+
+    StreamCollector(String request, int max, long since, Consumer<List<KanbaneryTask>> partialResults) {
+      myRequest = request;
+      myMax = max;
+      mySince = since;
+      myPartialResults = partialResults;
+    }
+
+    @Override
+    public boolean onTask(@NotNull Task task) {
+      myAll.add(task);
+      myBatch.add(task);
+      if (myBatch.size() < STREAM_BATCH_SIZE) {
+        return true;
+      }
+
+      flush();
+      List<KanbaneryTask> found = myTaskStore.search(myRequest, myMax, mySince);
+      if (myPartialResults != null) {
+        myPartialResults.consume(found);
+      }
+      return myMax <= 0 || found.size() < myMax;
+    }
+
+    void flush() {
+      myTaskStore.add(myBatch, myMetadataSoFar, getBoard());
+      myBatch.clear();
+    }
+  }
+
+  /**
+   * @return the additional boards, rebuilt whenever they were reconfigured
+   */
+  private synchronized List<KanbaneryBoard> additionalBoards() {
+    if (myClosed) {
+      return Collections.emptyList(); // close() already closed the boards, new ones would never be
+    }
+
+    String spec = myAdditionalBoards;
+    if (myBoardsSpec.equals(spec)) {
+      return myBoards;
+    }
+
+    for (KanbaneryBoard board : myBoards) {
+      board.close();
+    }
+
+    List<KanbaneryBoard> boards = new ArrayList<KanbaneryBoard>();
+    for (String[] board : KanbaneryBoard.parse(spec)) {
+      boards.add(new KanbaneryBoard(board[0], board[1], new KanbaneryBoard.Connector() {
+        @NotNull
+        @Override
+        public Janbanery open(@NotNull final String workspaceName, @NotNull final String projectName) throws Exception {
+          KanbaneryMetrics.Timer login = KanbaneryMetrics.getInstance().start(KanbaneryMetrics.LOGIN);
+          try {
+            Janbanery janbanery = call("login", new Callable<Janbanery>() {
+              @Override
+              public Janbanery call() throws Exception {
+                return connect().toWorkspace(workspaceName).usingProject(projectName);
+              }
+            });
+            login.success(1);
+            return janbanery;
+          } catch (Exception e) {
+            login.failure();
+            throw e;
+          }
+        }
+
+        @Override
+        public <T> T call(final String operation, final Callable<T> call) throws Exception {
+          return guarded(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+              return withTimeout(operation, call);
+            }
+          });
+        }
+
+        @Nullable
+        @Override
+        public ConditionalGet http() {
+          return conditionalGet(new KanbaneryApi(myBaseUrl)) == null ? null : myHttp;
+        }
+
+        @Nullable
+        @Override
+        public String projectUrl(@NotNull String workspaceName, @NotNull String projectName, @NotNull String resource) throws Exception {
+          Long projectId = projectIdOf(workspaceName, projectName);
+          return projectId == null ? null : new KanbaneryApi(myBaseUrl).projectUrl(workspaceName, projectId, resource);
+        }
+      }));
+    }
+
+    myBoards = boards;
+    myBoardsSpec = spec;
+    myTaskStore.setShowBoards(!boards.isEmpty());
+    return boards;
+  }
+
+  /**
+   * @return the id of a project of one of the workspaces, as last read (only read again if it was not read yet)
+   */
+  @Nullable
+  private Long projectIdOf(String workspaceName, String projectName) throws Exception {
+    List<Workspace> workspaces = myWorkspaces;
+    if (workspaces == null) {
+      workspaces = getWorkspaces();
+    }
+
+    for (Workspace workspace : workspaces) {
+      if (workspaceName.equals(workspace.getName())) {
+        for (pl.project13.janbanery.resources.Project project : workspace.getProjects()) {
+          if (projectName.equals(project.getName())) {
+            return project.getId();
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Fills the task store (and the metadata, if not loaded yet) from the snapshot of this board, only once per session.
+   *
+   * @return true if a usable snapshot was found
+   */
+  private boolean loadSnapshot() {
+    if (mySnapshotChecked || !isConfigured()) {
+      return false;
+    }
+    mySnapshotChecked = true;
+
+    BoardSnapshot snapshot = BoardSnapshot.readFrom(boardFile(BoardSnapshot.EXTENSION));
+    if (snapshot == null) {
+      return false;
+    }
+
+    BoardMetadata metadata = myMetadata.get();
+    if (metadata.getVersion() == 0) {
+      metadata = myMetadata.publish(new BoardMetadata(snapshot.getTaskTypes(), snapshot.getUsers(), Collections.<Column>emptyList(), 0));
+    }
+
+    myTaskStore.merge(snapshot.getTasks(), metadata, getBoard());
+    LOG.info("Loaded " + myTaskStore.size() + " tasks from the board snapshot");
+    return myTaskStore.size() > 0;
+  }
+
+  private void saveSnapshot() {
+    BoardMetadata metadata = myMetadata.get();
+    BoardSnapshot snapshot = new BoardSnapshot(myTaskStore.resources(getBoard()),
+                                               new ArrayList<TaskType>(metadata.getTaskTypes().values()),
+                                               new ArrayList<User>(metadata.getUsers().values()));
+    try {
+      snapshot.writeTo(boardFile(BoardSnapshot.EXTENSION));
+    } catch (IOException e) {
+      LOG.warn("Unable to write the board snapshot: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Applied to the local copy right away and written to Kanbanery in the background by the {@link TaskStateQueue}.
+   */
+  void setReadyToPull(long taskId, boolean readyToPull) {
+    TaskStateQueue queue = stateQueue();
+    myTaskStore.markReadyToPull(taskId, readyToPull);
+    queue.enqueue(taskId, readyToPull);
+  }
+
+  /**
+   * @throws IllegalStateException once the session was closed, the journal may belong to a new session of the board by then
+   */
+  private TaskStateQueue stateQueue() {
+    synchronized (myStateQueueLock) {
+      if (myClosed) {
+        throw new IllegalStateException("The Kanbanery session of " + getBoard() + " was closed");
+      }
+      if (myStateQueue != null) {
+        return myStateQueue;
+      }
+
+      File journal = boardFile("pending");
+      myStateQueue = new TaskStateQueue(journal, new TaskStateQueue.Writer() {
+        @Override
+        public void markReadyToPull(final long taskId, final boolean readyToPull) throws Exception {
+          final KanbaneryBoard board = boardOf(taskId);
+          if (board != null) {
+            board.markReadyToPull(taskId, readyToPull);
+            return;
+          }
+
+          final Task target = new Task();
+          target.setId(taskId);
+
+          withJanbanery(KanbaneryMetrics.TASKS_MARK, new JanbaneryCall<Void>() {
+            @Override
+            public Void call(Janbanery janbanery) throws Exception {
+              TaskMarkFlow mark = janbanery.tasks().mark(target);
+              if (readyToPull) {
+                mark.asReadyToPull();
+              } else {
+                mark.asNotReadyToPull();
+              }
+              return null;
+            }
+          });
+        }
+      }, new TaskStateQueue.Listener() {
+        @Override
+        public void dropped(long taskId, boolean readyToPull, @NotNull Exception cause) {
+          notifyUser("Kanbanery task state not changed",
+                     "Task #" + taskId + " could not be marked as " + (readyToPull ? "" : "not ") + "ready to pull on "
+                     + getBoard() + ", gave up retrying: " + cause.getMessage());
+        }
+      });
+      return myStateQueue;
+    }
+  }
+
+  @Nullable
+  KanbaneryTask findTask(final long taskId) throws Exception {
+    KanbaneryTask cached = myTaskCache.get(taskId);
+    if (cached != null) {
+      return cached;
+    }
+
+    KanbaneryTask known = myTaskStore.get(taskId);
+    if (known != null) {
+      myTaskCache.put(taskId, known);
+      return known;
+    }
+
+    if (!myBreaker.isClosed()) {
+      return null;
+    }
+
+    return myTaskFlights.execute(taskId, new Callable<KanbaneryTask>() {
+      @Override
+      public KanbaneryTask call() throws Exception {
+        List<KanbaneryBoard> additional = additionalBoards();
+        KanbaneryTask found;
+        try {
+          Task task = withJanbanery(KanbaneryMetrics.TASKS_BY_ID, new JanbaneryCall<Task>() {
+            @Override
+            public Task call(Janbanery janbanery) throws Exception {
+              return janbanery.tasks().byId(taskId);
+            }
+          });
+          TaskType taskType = myMetadata.get().getTaskType(task.getTaskTypeId());
+          found = new KanbaneryTask(task, taskType, myTaskComments, getBoard(), !additional.isEmpty());
+        } catch (Exception e) {
+          found = findOnAdditionalBoards(taskId, additional, e);
+        }
+
+        myTaskCache.put(taskId, found);
+        return found;
+      }
+    });
+  }
+
+  /**
+   * Looks for a task that is not on this session's board on the additional ones, one after the other.
+   *
+   * @param notFound why it was not found on this session's board, rethrown if no other board has it either
+   */
+  @NotNull
+  private KanbaneryTask findOnAdditionalBoards(final long taskId, List<KanbaneryBoard> boards, Exception notFound) throws Exception {
+    if (isOutage(notFound) || notFound instanceof CircuitOpenException) {
+      throw notFound;
+    }
+
+    for (final KanbaneryBoard board : boards) {
+      try {
+        Task task = board.task(taskId);
+        TaskType taskType = board.getMetadata().getTaskType(task.getTaskTypeId());
+        return new KanbaneryTask(task, taskType, myTaskComments, board.getName(), true);
+      } catch (Exception e) {
+        if (isOutage(e) || e instanceof CircuitOpenException) {
+          throw e;
+        }
+      }
+    }
+    throw notFound;
+  }
+
+  /**
+   * @return the additional board a known task comes from, null if it's on this session's board (or not known yet)
+   */
+  @Nullable
+  private KanbaneryBoard boardOf(long taskId) {
+    KanbaneryTask task = myTaskStore.get(taskId);
+    String name = task == null ? null : task.getBoard();
+    if (name == null || name.equals(getBoard())) {
+      return null;
+    }
+
+    for (KanbaneryBoard board : additionalBoards()) {
+      if (name.equals(board.getName())) {
+        return board;
+      }
+    }
+    return null;
+  }
+
+  @NotNull
+  List<Workspace> getWorkspaces() throws Exception {
+    ConditionalGet http = myHttp;
+    if (http != null) {
+      String url = new KanbaneryApi(myBaseUrl).workspacesUrl();
+      List<Workspace> known = myWorkspaces;
+      if (known == null) {
+        http.forget(url);
+      }
+      List<Workspace> changed = conditionally(http, KanbaneryMetrics.WORKSPACES, url, ConditionalGet.WORKSPACES);
+      if (changed != null) {
+        myWorkspaces = changed;
+        return changed;
+      }
+      return known;
+    }
+
+    return withJanbanery(KanbaneryMetrics.WORKSPACES, new JanbaneryCall<List<Workspace>>() {
+      @Override
+      public List<Workspace> call(Janbanery janbanery) throws Exception {
+        return janbanery.workspaces().all();
+      }
+    });
+  }
+
+  /**
+   * Threads asking while a login is in progress wait for it and get the same session.
+   * Rejected credentials are reported to the user once per session, anything else is up to the {@link CircuitBreaker}.
+   */
+  private Janbanery session() throws Exception {
+    synchronized (mySessionLock) {
+      if (myClosed) {
+        throw new IllegalStateException("The Kanbanery session of " + getBoard() + " was closed");
+      }
+      if (myJanbanery != null) {
+        return myJanbanery;
+      }
+
+      LOG.info("Reloading Janbanery...");
+      KanbaneryMetrics.Timer login = KanbaneryMetrics.getInstance().start(KanbaneryMetrics.LOGIN);
+      try {
+        myJanbanery = withTimeout("login", new Callable<Janbanery>() {
+          @Override
+          public Janbanery call() throws Exception {
+            return open();
+          }
+        });
+
+        mySessionsCreated.incrementAndGet();
+        login.success(1);
+      } catch (Exception e) {
+        login.failure();
+        if (e instanceof UnauthorizedKanbaneryException && myLoginFailureNotified.compareAndSet(false, true)) {
+          notifyUser("Unable to login to Kanbanery.com", "Please check your credentials and try again.");
+        }
+        throw e;
+      }
+
+      return myJanbanery;
+    }
+  }
+
+  private Janbanery open() throws Exception {
+    JanbaneryFactory.JanbaneryToWorkspace toWorkspace = connect();
+
+    if (myWorkspaceName.isEmpty() || myProjectName.isEmpty()) {
+      return toWorkspace.notDeclaringWorkspaceYet();
+    }
+
+    try {
+      Janbanery janbanery = toWorkspace.toWorkspace(myWorkspaceName).usingProject(myProjectName);
+
+      myMetadata.scheduleRefresh(METADATA_REFRESH_MILLIS);
+      return janbanery;
+    } catch (ProjectNotFoundException ex) {
+      return toWorkspace.toWorkspace(myWorkspaceName);
+    }
+  }
+
+  private static void notifyUser(String title, String content) {
+    Notifications.Bus.notify(new Notification(NOTIFICATION_GROUP, title, content, NotificationType.WARNING));
+  }
+
+  private JanbaneryFactory.JanbaneryToWorkspace connect() throws Exception {
+    JanbaneryFactory factory = new JanbaneryFactory();
+    boolean hasApiKey = !myApiKey.isEmpty();
+    if (myBaseUrl != null) {
+      return factory.connectUsing(hasApiKey ? new ApiUrlConfiguration(myBaseUrl, myApiKey)
+                                            : new ApiUrlConfiguration(myBaseUrl, myUsername, myPassword));
+    }
+
+    if (hasApiKey) {
+      return factory.connectUsing(myApiKey);
+    } else {
+      return factory.connectUsing(myUsername, myPassword);
+    }
+  }
+
+  /**
+   * Runs the call using the current session. If the server rejected the session
+   * (expired token, changed password...) we log in again and retry once.
+   *
+   * @param operation what to record the call's latency and result size as in the {@link KanbaneryMetrics}, logging in is recorded separately
+   */
+  private <T> T withJanbanery(final String operation, final JanbaneryCall<T> call) throws Exception {
+    return guarded(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        Janbanery janbanery = session();
+        try {
+          return timed(operation, call, janbanery);
+        } catch (UnauthorizedKanbaneryException e) {
+          LOG.info("Kanbanery rejected our session, logging in again...");
+          closeJanbanery(janbanery);
+          return timed(operation, call, session());
+        }
+      }
+    });
+  }
+
+  /**
+   * Makes the call unless the {@link CircuitBreaker} is open and tells the breaker how it went.
+   * Only {@link #isOutage outages} count as failures, anything else is rethrown without touching the breaker.
+   */
+  private <T> T guarded(Callable<T> call) throws Exception {
+    if (!myBreaker.allowRequest()) {
+      throw new CircuitOpenException("Kanbanery is unreachable, not calling it for a while");
+    }
+
+    try {
+      T result = call.call();
+      myBreaker.onSuccess();
+      return result;
+    } catch (Exception e) {
+      if (isOutage(e)) {
+        myBreaker.onFailure(e);
+      } else {
+        myBreaker.onInconclusive();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * @return true if the call failed because Kanbanery is down or unreachable: an I/O error, a timeout or a 5xx.
+   * Rejected credentials, a missing task or a cancelled caller say nothing about that.
+   */
+  private static boolean isOutage(Exception e) {
+    if (e instanceof InterruptedException || e instanceof CancellationException || e instanceof CircuitOpenException
+        || e instanceof UnauthorizedKanbaneryException || Thread.currentThread().isInterrupted()) {
+      return false;
+    }
+
+    // Janbanery wraps what its http client threw
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof HttpStatusException) {
+        return ((HttpStatusException) cause).isServerError();
+      }
+      if (cause instanceof InternalServerErrorKanbaneryException || cause instanceof TimeoutException || cause instanceof IOException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static <T> T timed(String operation, final JanbaneryCall<T> call, final Janbanery janbanery) throws Exception {
+    KanbaneryMetrics.Timer timer = KanbaneryMetrics.getInstance().start(operation);
+    try {
+      T result = withTimeout(operation, new Callable<T>() {
+        @Override
+        public T call() throws Exception {
+          return call.call(janbanery);
+        }
+      });
+      timer.success(KanbaneryMetrics.itemsOf(result));
+      return result;
+    } catch (Exception e) {
+      timer.failure();
+      throw e;
+    }
+  }
+
+  /**
+   * Runs the call on {@link #ourCalls} and gives up waiting (interrupting it) after {@link #CALL_TIMEOUT_SECONDS}.
+   */
+  private static <T> T withTimeout(String operation, Callable<T> call) throws Exception {
+    Future<T> future = ourCalls.submit(call);
+    try {
+      return future.get(CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      throw new TimeoutException("Kanbanery did not answer " + operation + " within " + CALL_TIMEOUT_SECONDS + " seconds");
+    } catch (InterruptedException e) {
+      // whoever waits for us was cancelled, so is the call
+      future.cancel(true);
+      throw e;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Logs in again, e.g. when the user asked for it in the settings.
+   */
+  void reload() {
+    closeJanbanery();
+    try {
+      session();
+    } catch (Exception e) {
+      LOG.warn("Unable to login to Kanbanery...", e);
+    }
+  }
+
+  /**
+   * @return true while Kanbanery is unreachable and the tasks served are the last ones known
+   */
+  boolean isStale() {
+    return !myBreaker.isClosed();
+  }
+
+  private void closeJanbanery() {
+    synchronized (mySessionLock) {
+      if (myJanbanery != null) {
+        myJanbanery.close();
+        myJanbanery = null; // reset the lazy getter
+      }
+    }
+  }
+
+  /**
+   * Closes the session only if it is still the current one, another thread may have logged in again already.
+   */
+  private void closeJanbanery(@Nullable Janbanery rejected) {
+    synchronized (mySessionLock) {
+      if (rejected != null && rejected == myJanbanery) {
+        closeJanbanery();
+      }
+    }
+  }
+
+  /**
+   * Called by the {@link BoardSessions} once no repository uses this session anymore. Stops everything working in the
+   * background and waits for the state changes being written; the ones still pending are left in the journal for the
+   * next session of the board. Calls still running on the closed session fail instead of logging in again.
+   */
+  void close() {
+    synchronized (this) {
+      myClosed = true; // under the monitor of additionalBoards(), so no board is built after the ones below were closed
+    }
+    mySyncScheduler.stop();
+    myMetadata.stop();
+    myComments.close();
+
+    TaskStateQueue stateQueue;
+    synchronized (myStateQueueLock) {
+      stateQueue = myStateQueue;
+    }
+    synchronized (this) {
+      for (KanbaneryBoard board : myBoards) {
+        board.close();
+      }
+      myBoards = Collections.emptyList();
+      myBoardsSpec = "";
+    }
+    if (stateQueue != null) {
+      stateQueue.close();
+    }
+    closeJanbanery();
+
+    KanbaneryMetrics metrics = KanbaneryMetrics.getInstance();
+    for (String gauge : gaugeNames()) {
+      metrics.removeGauge(gauge);
+    }
+  }
+
+  /**
+   * Publishes how this session's caches and background sync are doing.
+   */
+  private void registerGauges() {
+    String[] names = gaugeNames();
+
+    KanbaneryMetrics metrics = KanbaneryMetrics.getInstance();
+    metrics.setGauge(names[0], new KanbaneryMetrics.Gauge() {
+      @Override
+      public double value() {
+        long hits = myTaskCache.getHitCount();
+        long lookups = hits + myTaskCache.getMissCount();
+        return lookups == 0 ? Double.NaN : hits / (double) lookups;
+      }
+    });
+    metrics.setGauge(names[1], new KanbaneryMetrics.Gauge() {
+      @Override
+      public double value() {
+        long age = mySyncScheduler.getLastSyncAgeMillis();
+        return age < 0 ? Double.NaN : age / 1000.0;
+      }
+    });
+    metrics.setGauge(names[2], new KanbaneryMetrics.Gauge() {
+      @Override
+      public double value() {
+        return myTaskStore.size();
+      }
+    });
+  }
+
+  /**
+   * the account is part of the names, another session of the same board (other account or api url) has gauges of its own
+   */
+  private String[] gaugeNames() {
+    String prefix = getBoard() + " [" + Digests.sha1(account()).substring(0, 8) + "] ";
+    return new String[]{prefix + "taskCache.hitRatio", prefix + "sync.lagSeconds", prefix + "store.tasks"};
+  }
+
+  int getSessionsCreatedCount() {
+    return mySessionsCreated.get();
+  }
+
+  @NotNull
+  BoardMetadata getMetadata() {
+    return myMetadata.get();
+  }
+
+  /**
+   * Starts loading the metadata if it was never loaded and waits for it, but no longer than the timeout.
+   */
+  @NotNull
+  BoardMetadata awaitMetadata(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+    if (myMetadata.get().getVersion() == 0) {
+      myMetadata.refresh();
+    }
+    return myMetadata.await(timeout, unit);
+  }
+
+  /**
+   * Answers from the local copy of the board only, never waits for Kanbanery.
+   */
+  @NotNull
+  List<KanbaneryTask> searchLocal(@Nullable String request, int max, long since) {
+    return myTaskStore.search(request, max, since);
+  }
+
+  @NotNull
+  ExpiringLruCache<Long, KanbaneryTask> getTaskCache() {
+    return myTaskCache;
+  }
+
+  long getLastSyncAgeMillis() {
+    return mySyncScheduler.getLastSyncAgeMillis();
+  }
+
+  long getCurrentSyncDelayMillis() {
+    return mySyncScheduler.getCurrentDelayMillis();
+  }
+
+  private interface JanbaneryCall<T> {
+    T call(Janbanery janbanery) throws Exception;
+  }
+}
@@ -0,0 +1,155 @@
+package pl.project13.intellij.kanbanery;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import pl.project13.intellij.kanbanery.cache.Digests;
+import pl.project13.intellij.kanbanery.sync.BackgroundExecutor;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Application wide registry of the {@link BoardSession}s, keyed by account and board, so that all repositories configured
+ * the same way (clones made by the settings dialog, the same account in several project windows) share one of them.
+ * <p/>
+ * Repositories have no "closed" callback, so every user of a session is tracked by a weak reference: a session is closed
+ * once the last repository using it switched to another account / board or was garbage collected.
+ *
+ * @author Konrad Malawski
+ */
+class BoardSessions {
+
+  private final static Logger LOG = Logger.getInstance("#pl.project13.intellij.kanbanery.BoardSessions");
+
+  private static final long EXPUNGE_PERIOD_SECONDS = 60;
+
+  private static final BoardSessions ourInstance = new BoardSessions();
+
+  static {
+    BackgroundExecutor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        ourInstance.expunge();
+      }
+    }, EXPUNGE_PERIOD_SECONDS, EXPUNGE_PERIOD_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Creates the session for a key nobody uses yet.
+   */
+  interface Factory {
+    @NotNull
+    BoardSession create();
+  }
+
+  /**
+   * One repository's claim on a session, given up with {@link #release()} or when the repository is collected.
+   */
+  static class Lease extends WeakReference<Object> {
+    private final String myDigest;
+    private final BoardSession mySession;
+
+    private Lease(Object owner, ReferenceQueue<Object> queue, String digest, BoardSession session) {
+      super(owner, queue);
+      myDigest = digest;
+      mySession = session;
+    }
+
+    @NotNull
+    BoardSession getSession() {
+      return mySession;
+    }
+
+    void release() {
+      clear();
+      ourInstance.release(this);
+    }
+  }
+
+  private static class Entry {
+    final BoardSession session;
+
+    /**
+     * kept here, a weak reference that is not reachable itself would never be enqueued
+     */
+    final Set<Lease> leases = new HashSet<Lease>();
+
+    Entry(BoardSession session) {
+      this.session = session;
+    }
+  }
+
+  private final Map<String, Entry> mySessions = new HashMap<String, Entry>();
+  private final ReferenceQueue<Object> myCollected = new ReferenceQueue<Object>();
+
+  private BoardSessions() {
+  }
+
+  @NotNull
+  static BoardSessions getInstance() {
+    return ourInstance;
+  }
+
+  /**
+   * @param key identifies the account and board, only a digest of it is kept
+   */
+  @NotNull
+  Lease acquire(@NotNull Object owner, @NotNull String key, @NotNull Factory factory) {
+    expunge();
+
+    String digest = Digests.sha1(key);
+    synchronized (this) {
+      Entry entry = mySessions.get(digest);
+      if (entry == null) {
+        entry = new Entry(factory.create());
+        mySessions.put(digest, entry);
+      }
+      Lease lease = new Lease(owner, myCollected, digest, entry.session);
+      entry.leases.add(lease);
+      return lease;
+    }
+  }
+
+  /**
+   * @return how many sessions are open, across all accounts and boards
+   */
+  synchronized int size() {
+    return mySessions.size();
+  }
+
+  private void release(Lease lease) {
+    BoardSession closed = null;
+    synchronized (this) {
+      Entry entry = mySessions.get(lease.myDigest);
+      if (entry != null && entry.leases.remove(lease) && entry.leases.isEmpty()) {
+        mySessions.remove(lease.myDigest);
+        closed = entry.session;
+      }
+    }
+
+    if (closed != null) {
+      LOG.info("Nobody uses the Kanbanery session of " + closed.getBoard() + " anymore, closing it");
+      // closing waits for the state changes being written, never on the releasing thread (which may be the event dispatch thread)
+      final BoardSession session = closed;
+      BackgroundExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          session.close();
+        }
+      });
+    }
+  }
+
+  private void expunge() {
+    Reference<?> collected;
+    while ((collected = myCollected.poll()) != null) {
+      release((Lease) collected);
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package pl.project13.intellij.kanbanery;
+
+import com.google.gson.stream.JsonReader;
+import com.intellij.util.io.Base64;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import pl.project13.intellij.kanbanery.sync.HttpStatusException;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Urls and authentication for the requests the plugin makes without Janbanery, like {@link pl.project13.intellij.kanbanery.sync.TaskStream}
+ * and the {@link pl.project13.intellij.kanbanery.sync.ConditionalGet conditional} ones.
+ * Uses the same layout as {@link ApiUrlConfiguration} when the api is not served by kanbanery.com.
+ *
+ * @author Konrad Malawski
+ */
+class KanbaneryApi {
+
+  static final String API_KEY_HEADER = "X-Kanbanery-ApiToken";
+
+  private static final int TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(10);
+
+  @Nullable
+  private final String myBaseUrl;
+
+  /**
+   * @param baseUrl as returned by {@link ApiUrlConfiguration#baseUrl(String)}, null for kanbanery.com
+   */
+  KanbaneryApi(@Nullable String baseUrl) {
+    myBaseUrl = baseUrl;
+  }
+
+  @NotNull
+  String apiUrl() {
+    return myBaseUrl == null ? "https://kanbanery.com/api/v1/" : myBaseUrl + "api/v1/";
+  }
+
+  @NotNull
+  String apiUrl(@NotNull String workspaceName) {
+    return myBaseUrl == null ? "https://" + workspaceName + ".kanbanery.com/api/v1/" : myBaseUrl + workspaceName + "/api/v1/";
+  }
+
+  @NotNull
+  String workspacesUrl() {
+    return apiUrl() + "user/workspaces.json";
+  }
+
+  @NotNull
+  String tasksUrl(@NotNull String workspaceName, long projectId) {
+    return projectUrl(workspaceName, projectId, "tasks");
+  }
+
+  /**
+   * @param resource e.g. "tasks", "task_types" or "users"
+   */
+  @NotNull
+  String projectUrl(@NotNull String workspaceName, long projectId, @NotNull String resource) {
+    return apiUrl(workspaceName) + "projects/" + projectId + "/" + resource + ".json";
+  }
+
+  @NotNull
+  Map<String, String> authHeaders(@NotNull String apiKey) {
+    return Collections.singletonMap(API_KEY_HEADER, apiKey);
+  }
+
+  /**
+   * Exchanges a user name and password for the api key of the account.
+   */
+  @NotNull
+  String fetchApiKey(@NotNull String user, @NotNull String password) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(apiUrl() + "user/token.json").openConnection();
+    try {
+      connection.setConnectTimeout(TIMEOUT_MILLIS);
+      connection.setReadTimeout(TIMEOUT_MILLIS);
+      connection.setRequestProperty("Authorization", "Basic " + Base64.encode((user + ":" + password).getBytes("UTF-8")));
+
+      int status = connection.getResponseCode();
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new HttpStatusException(status, "Kanbanery answered " + status + " when asked for the api key");
+      }
+
+      JsonReader reader = new JsonReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+      try {
+        reader.beginObject();
+        while (reader.hasNext()) {
+          if ("api_token".equals(reader.nextName())) {
+            return reader.nextString();
+          }
+          reader.skipValue();
+        }
+      } finally {
+        reader.close();
+      }
+      throw new IOException("No api key in Kanbanery's answer");
+    } finally {
+      connection.disconnect();
+    }
+  }
+}
@@ -0,0 +1,365 @@
+package pl.project13.intellij.kanbanery;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import pl.project13.intellij.kanbanery.metrics.KanbaneryMetrics;
+import pl.project13.intellij.kanbanery.sync.BoardMetadata;
+import pl.project13.intellij.kanbanery.sync.ConditionalGet;
+import pl.project13.intellij.kanbanery.sync.MetadataCache;
+import pl.project13.intellij.kanbanery.sync.TaskStore;
+import pl.project13.janbanery.core.Janbanery;
+import pl.project13.janbanery.core.flow.TaskMarkFlow;
+import pl.project13.janbanery.resources.Column;
+import pl.project13.janbanery.resources.Comment;
+import pl.project13.janbanery.resources.Task;
+import pl.project13.janbanery.resources.TaskType;
+import pl.project13.janbanery.resources.User;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One of the additional boards a {@link KanbaneryRepository} lists tasks from, next to its own workspace/project.
+ * Its tasks are merged into the repository's task store, tagged with the board's name, and anything done to one of them
+ * (marking it, loading its comments) goes through the board's own session, in the board's workspace.
+ *
+ * @author Konrad Malawski
+ */
+class KanbaneryBoard {
+
+  private final static Logger LOG = Logger.getInstance("#pl.project13.intellij.kanbanery.KanbaneryBoard");
+
+  private static final long METADATA_REFRESH_MILLIS = TimeUnit.MINUTES.toMillis(15);
+  private static final long METADATA_WAIT_SECONDS = 5;
+
+  /**
+   * Connects a board to Kanbanery, using the credentials (and the conditional requests) of the repository's session.
+   */
+  interface Connector {
+    /**
+     * Logs in to the board, the way {@link #call} makes calls.
+     */
+    @NotNull
+    Janbanery open(@NotNull String workspaceName, @NotNull String projectName) throws Exception;
+
+    /**
+     * Makes a call to Kanbanery the way the session makes its own: not while its circuit breaker is open,
+     * telling the breaker how it went, and giving up after the session's call timeout.
+     *
+     * @param operation what the call is, for the timeout message
+     */
+    <T> T call(@NotNull String operation, @NotNull Callable<T> call) throws Exception;
+
+    /**
+     * @return what to make conditional requests with, null if they are not possible (Janbanery is used instead then)
+     */
+    @Nullable
+    ConditionalGet http();
+
+    /**
+     * @param resource e.g. "tasks", "task_types" or "users"
+     * @return the url of a resource of the board's project, null if the project was not found
+     */
+    @Nullable
+    String projectUrl(@NotNull String workspaceName, @NotNull String projectName, @NotNull String resource) throws Exception;
+  }
+
+  private final String myWorkspaceName;
+  private final String myProjectName;
+  private final Connector myConnector;
+
+  // guarded by this, which is never held while talking to Kanbanery
+  private Janbanery myJanbanery;
+  private boolean myStarted;
+  private boolean myClosed;
+  private final MetadataCache myMetadata;
+  private final AtomicBoolean mySyncing = new AtomicBoolean();
+
+  /**
+   * if a complete listing of the board was merged into the store, only then a 304 for its tasks means there's nothing to do
+   */
+  private volatile boolean myMerged;
+
+  KanbaneryBoard(@NotNull String workspaceName, @NotNull String projectName, @NotNull Connector connector) {
+    myWorkspaceName = workspaceName;
+    myProjectName = projectName;
+    myConnector = connector;
+    myMetadata = new MetadataCache(new MetadataCache.Loader() {
+      @NotNull
+      @Override
+      public BoardMetadata load() throws Exception {
+        List<TaskType> taskTypes;
+        List<User> users;
+        List<Column> columns;
+
+        ConditionalGet http = myConnector.http();
+        String taskTypesUrl = http == null ? null : myConnector.projectUrl(myWorkspaceName, myProjectName, "task_types");
+        if (taskTypesUrl != null) {
+          BoardMetadata current = myMetadata.get();
+          String usersUrl = myConnector.projectUrl(myWorkspaceName, myProjectName, "users");
+          String columnsUrl = myConnector.projectUrl(myWorkspaceName, myProjectName, "columns");
+          if (current.getVersion() == 0) {
+            // nothing to fall back to on a 304
+            http.forget(taskTypesUrl);
+            http.forget(usersUrl);
+            http.forget(columnsUrl);
+          }
+
+          taskTypes = conditionally(http, KanbaneryMetrics.TASK_TYPES, taskTypesUrl, ConditionalGet.TASK_TYPES);
+          if (taskTypes == null) {
+            taskTypes = new ArrayList<TaskType>(current.getTaskTypes().values());
+          }
+          users = conditionally(http, KanbaneryMetrics.USERS, usersUrl, ConditionalGet.USERS_WITH_NOBODY);
+          if (users == null) {
+            users = new ArrayList<User>(current.getUsers().values());
+          }
+          columns = conditionally(http, KanbaneryMetrics.COLUMNS, columnsUrl, ConditionalGet.COLUMNS);
+          if (columns == null) {
+            columns = new ArrayList<Column>(current.getColumns().values());
+          }
+        } else {
+          final Janbanery janbanery = janbanery();
+          taskTypes = timed(KanbaneryMetrics.TASK_TYPES, new Callable<List<TaskType>>() {
+            @Override
+            public List<TaskType> call() throws Exception {
+              return janbanery.taskTypes().all();
+            }
+          });
+          users = timed(KanbaneryMetrics.USERS, new Callable<List<User>>() {
+            @Override
+            public List<User> call() throws Exception {
+              return janbanery.users().allWithNobody();
+            }
+          });
+          columns = timed(KanbaneryMetrics.COLUMNS, new Callable<List<Column>>() {
+            @Override
+            public List<Column> call() throws Exception {
+              return janbanery.columns().all();
+            }
+          });
+        }
+        return new BoardMetadata(taskTypes, users, columns, 0);
+      }
+    });
+  }
+
+  /**
+   * Parses "workspace/project" pairs separated by commas, semicolons or new lines, ignoring anything malformed.
+   */
+  @NotNull
+  static List<String[]> parse(@NotNull String boards) {
+    List<String[]> parsed = new ArrayList<String[]>();
+    for (String board : boards.split("[,;\n]")) {
+      String[] split = board.trim().split("/");
+      if (split.length == 2 && !split[0].trim().isEmpty() && !split[1].trim().isEmpty()) {
+        parsed.add(new String[]{split[0].trim(), split[1].trim()});
+      }
+    }
+    return parsed;
+  }
+
+  @NotNull
+  String getName() {
+    return myWorkspaceName + "/" + myProjectName;
+  }
+
+  /**
+   * Fetches the board (conditionally if possible) and merges it into the store, unless a sync of this board is still running.
+   *
+   * @return true if anything changed
+   */
+  boolean sync(@NotNull TaskStore store) throws Exception {
+    if (!mySyncing.compareAndSet(false, true)) {
+      LOG.debug("Still syncing " + getName() + ", skipping");
+      return false;
+    }
+
+    try {
+      start();
+      List<Task> tasks = fetchTasks();
+      BoardMetadata metadata = myMetadata.await(METADATA_WAIT_SECONDS, TimeUnit.SECONDS);
+      if (tasks == null) {
+        if (store.getMetadataVersion(getName()) == metadata.getVersion()) {
+          LOG.debug("Tasks of " + getName() + " did not change since the last sync");
+          return false;
+        }
+        // the tasks did not change, but what they refer to did
+        tasks = store.resources(getName());
+      }
+
+      KanbaneryMetrics.Timer merge = KanbaneryMetrics.getInstance().start(KanbaneryMetrics.LOCAL_MERGE);
+      int changed = store.merge(tasks, metadata, getName());
+      merge.success(tasks.size());
+      myMerged = true;
+      return changed > 0;
+    } finally {
+      mySyncing.set(false);
+    }
+  }
+
+  /**
+   * @return all tasks of the board, null if they did not change since they were last merged
+   */
+  @Nullable
+  private List<Task> fetchTasks() throws Exception {
+    ConditionalGet http = myConnector.http();
+    String url = http == null ? null : myConnector.projectUrl(myWorkspaceName, myProjectName, "tasks");
+    if (url != null) {
+      if (!myMerged) {
+        // the store does not hold a complete listing of this board, a 304 would leave it that way
+        http.forget(url);
+      }
+      return conditionally(http, KanbaneryMetrics.TASKS_ALL, url, ConditionalGet.TASKS);
+    }
+
+    final Janbanery janbanery = janbanery();
+    return timed(KanbaneryMetrics.TASKS_ALL, new Callable<List<Task>>() {
+      @Override
+      public List<Task> call() throws Exception {
+        return janbanery.tasks().all();
+      }
+    });
+  }
+
+  void markReadyToPull(long taskId, final boolean readyToPull) throws Exception {
+    final Task target = new Task();
+    target.setId(taskId);
+
+    final Janbanery janbanery = janbanery();
+    timed(KanbaneryMetrics.TASKS_MARK, new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        TaskMarkFlow mark = janbanery.tasks().mark(target);
+        if (readyToPull) {
+          mark.asReadyToPull();
+        } else {
+          mark.asNotReadyToPull();
+        }
+        return null;
+      }
+    });
+  }
+
+  @NotNull
+  List<Comment> comments(long taskId) throws Exception {
+    final Task task = new Task();
+    task.setId(taskId);
+
+    final Janbanery janbanery = janbanery();
+    return timed(KanbaneryMetrics.COMMENTS, new Callable<List<Comment>>() {
+      @Override
+      public List<Comment> call() throws Exception {
+        return janbanery.comments().of(task).all();
+      }
+    });
+  }
+
+  /**
+   * @return the task, if it is on this board
+   */
+  @NotNull
+  Task task(final long taskId) throws Exception {
+    final Janbanery janbanery = janbanery();
+    return timed(KanbaneryMetrics.TASKS_BY_ID, new Callable<Task>() {
+      @Override
+      public Task call() throws Exception {
+        return janbanery.tasks().byId(taskId);
+      }
+    });
+  }
+
+  /**
+   * @return the metadata of the board, for wrapping one of its tasks
+   */
+  @NotNull
+  BoardMetadata getMetadata() {
+    return myMetadata.get();
+  }
+
+  /**
+   * Makes a Janbanery call through the {@link Connector}, recording it in the {@link KanbaneryMetrics}.
+   * The session is looked up before, so logging in never runs inside another call.
+   */
+  private <T> T timed(String operation, Callable<T> call) throws Exception {
+    KanbaneryMetrics.Timer timer = KanbaneryMetrics.getInstance().start(operation);
+    try {
+      T result = myConnector.call(operation, call);
+      timer.success(KanbaneryMetrics.itemsOf(result));
+      return result;
+    } catch (Exception e) {
+      timer.failure();
+      throw e;
+    }
+  }
+
+  /**
+   * Like {@link #timed}, for a request made without Janbanery (which records itself).
+   *
+   * @return the resource, null if it did not change since it was last read
+   */
+  @Nullable
+  private <T> T conditionally(final ConditionalGet http, final String operation, final String url,
+                              final ConditionalGet.Parser<T> parser) throws Exception {
+    return myConnector.call(operation, new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        return http.get(operation, url, parser);
+      }
+    });
+  }
+
+  /**
+   * Logs in without holding the monitor, so a slow login doesn't block closing the board or other callers
+   * for longer than it takes. Threads racing to log in the first time all do, the first one to finish is kept.
+   */
+  private Janbanery janbanery() throws Exception {
+    synchronized (this) {
+      start();
+      if (myJanbanery != null) {
+        return myJanbanery;
+      }
+    }
+
+    Janbanery opened = myConnector.open(myWorkspaceName, myProjectName);
+    synchronized (this) {
+      if (myClosed) {
+        opened.close();
+        throw new IllegalStateException("The board " + getName() + " was closed");
+      }
+      if (myJanbanery != null) {
+        opened.close();
+        return myJanbanery;
+      }
+      myJanbanery = opened;
+      return opened;
+    }
+  }
+
+  /**
+   * Starts refreshing the metadata the first time the board is used, conditional requests don't log in.
+   *
+   * @throws IllegalStateException once the board was closed
+   */
+  private synchronized void start() {
+    if (myClosed) {
+      throw new IllegalStateException("The board " + getName() + " was closed");
+    }
+    if (!myStarted) {
+      myMetadata.scheduleRefresh(METADATA_REFRESH_MILLIS);
+      myStarted = true;
+    }
+  }
+
+  synchronized void close() {
+    myClosed = true;
+    myMetadata.stop();
+    if (myJanbanery != null) {
+      myJanbanery.close();
+      myJanbanery = null;
+    }
+  }
+}
@@ -1,30 +1,36 @@
 package pl.project13.intellij.kanbanery;
 
-import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.tasks.Task;
 import com.intellij.tasks.TaskState;
 import com.intellij.tasks.impl.BaseRepositoryImpl;
+import com.intellij.util.Consumer;
+import pl.project13.intellij.kanbanery.cache.Digests;
+import pl.project13.intellij.kanbanery.cache.ExpiringLruCache;
+import pl.project13.intellij.kanbanery.cache.ProjectCatalog;
 import pl.project13.intellij.kanbanery.model.KanbaneryTask;
+import pl.project13.intellij.kanbanery.sync.AsyncCalls;
+import pl.project13.intellij.kanbanery.sync.BoardMetadata;
+import pl.project13.intellij.kanbanery.sync.BoardSyncScheduler;
+import pl.project13.intellij.kanbanery.sync.TaskStateQueue;
 import com.intellij.util.xmlb.annotations.Tag;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import pl.project13.janbanery.core.Janbanery;
-import pl.project13.janbanery.core.JanbaneryFactory;
-import pl.project13.janbanery.core.flow.TaskMarkFlow;
-import pl.project13.janbanery.exceptions.ProjectNotFoundException;
-import pl.project13.janbanery.resources.TaskType;
-import pl.project13.janbanery.resources.User;
 import pl.project13.janbanery.resources.Workspace;
 
-import javax.swing.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import static com.google.common.collect.Maps.newConcurrentMap;
-import static com.google.common.collect.Maps.newHashMap;
 import static com.intellij.openapi.util.text.StringUtil.isNotEmpty;
+import static com.intellij.openapi.util.text.StringUtil.notNullize;
 
 /**
+ * The settings of one Kanbanery task server. All the work is done by the {@link BoardSession} of its account and board,
+ * which it shares with every other repository configured the same way (see {@link BoardSessions}).
+ *
  * @author Konrad Malawski
  */
 @Tag("Kanbanery")
@@ -32,14 +38,34 @@ public class KanbaneryRepository extends BaseRepositoryImpl {
 
   private final static Logger LOG = Logger.getInstance("#pl.project13.intellij.kanbanery.KanbaneryRepository");
 
+  /**
+   * how long the IDE waits for the tasks and for a single task, before going on without Kanbanery's answer
+   */
+  private static final long ISSUES_WAIT_SECONDS = 30;
+  private static final long FIND_TASK_WAIT_SECONDS = 10;
+
   private String myApiKey = "";
   private String myProjectName = "";
   private String myWorkspaceName = "";
 
-  private Janbanery myJanbanery;
+  /**
+   * more "workspace/project" pairs to list tasks from, separated by commas
+   */
+  private String myAdditionalBoards = "";
+
+  /**
+   * where the Kanbanery API is served from, empty for kanbanery.com
+   */
+  private String myApiUrl = "";
+
+  private int mySyncIntervalSeconds = 30;
+  private int myMaxSyncBackoffSeconds = 600;
 
-  private Map<Long, TaskType> myTaskTypeCache = newConcurrentMap();
-  private Map<Long, User> myUsersCache = newConcurrentMap();
+  /**
+   * our claim on the shared session, and the {@link #sessionFingerprint()} it was acquired for
+   */
+  private BoardSessions.Lease myLease;
+  private String myLeaseFingerprint;
 
   /**
    * for serialization
@@ -53,32 +79,140 @@ public class KanbaneryRepository extends BaseRepositoryImpl {
     this.myWorkspaceName = other.myWorkspaceName;
     this.myProjectName = other.myProjectName;
     this.myApiKey = other.myApiKey;
-    this.myJanbanery = other.myJanbanery;
+    this.myAdditionalBoards = other.myAdditionalBoards;
+    this.myApiUrl = other.myApiUrl;
+    this.mySyncIntervalSeconds = other.mySyncIntervalSeconds;
+    this.myMaxSyncBackoffSeconds = other.myMaxSyncBackoffSeconds;
+
+    // settings only: the copy (e.g. the one edited in the settings dialog) acquires its own lease on first use,
+    // sharing ours would have both release the same claim on the session and log in with stale settings
+    this.myLease = null;
+    this.myLeaseFingerprint = null;
   }
 
   public KanbaneryRepository(KanbaneryRepositoryType type) {
     super(type);
   }
 
+  /**
+   * @return the session shared by all repositories with the same account and board, acquired again whenever those changed
+   */
+  @NotNull
+  private synchronized BoardSession session() {
+    String fingerprint = sessionFingerprint();
+    if (myLease == null || !fingerprint.equals(myLeaseFingerprint)) {
+      if (myLease != null) {
+        myLease.release();
+      }
+
+      final String apiKey = myApiKey;
+      final String username = notNullize(myUsername);
+      final String password = notNullize(myPassword);
+      final String baseUrl = ApiUrlConfiguration.baseUrl(myApiUrl);
+      final String workspaceName = myWorkspaceName;
+      final String projectName = myProjectName;
+      myLease = BoardSessions.getInstance().acquire(this, fingerprint, new BoardSessions.Factory() {
+        @NotNull
+        @Override
+        public BoardSession create() {
+          return new BoardSession(apiKey, username, password, baseUrl, workspaceName, projectName);
+        }
+      });
+      myLeaseFingerprint = fingerprint;
+    }
+
+    BoardSession session = myLease.getSession();
+    session.configure(myAdditionalBoards, mySyncIntervalSeconds, myMaxSyncBackoffSeconds);
+    return session;
+  }
+
+  /**
+   * Waits for {@link #getIssuesAsync} for at most {@link #ISSUES_WAIT_SECONDS}, then answers from the local copy of the board
+   * (the sync goes on in the background).
+   */
   @Override
   public Task[] getIssues(@Nullable String request, int max, long since) throws Exception {
-    List<pl.project13.janbanery.resources.Task> all = janbanery().tasks().all();
-    List<KanbaneryTask> tasks = Lists.transform(all, KanbaneryTask.transform(myTaskTypeCache));
-
+    List<KanbaneryTask> tasks;
+    try {
+      tasks = AsyncCalls.await(getIssuesAsync(request, max, since, 0, TimeUnit.SECONDS), ISSUES_WAIT_SECONDS, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      LOG.info("Kanbanery is slow to answer, listing the tasks known so far");
+      tasks = session().searchLocal(request, max, since);
+    }
     return tasks.toArray(new KanbaneryTask[tasks.size()]);
   }
 
+  /**
+   * Served from the local copy of the board, which is kept fresh by the {@link BoardSyncScheduler}.
+   * Only the very first call (no snapshot on disk either) has to wait for Kanbanery, and only until enough tasks were streamed.
+   *
+   * @param timeout cancels the call once it passes, 0 for no deadline
+   */
+  @NotNull
+  public ListenableFuture<List<KanbaneryTask>> getIssuesAsync(@Nullable final String request, final int max, final long since,
+                                                             long timeout, @NotNull TimeUnit unit) {
+    final BoardSession session = session();
+    return AsyncCalls.submit(new Callable<List<KanbaneryTask>>() {
+      @Override
+      public List<KanbaneryTask> call() throws Exception {
+        return session.getIssues(request, max, since);
+      }
+    }, timeout, unit);
+  }
+
+  /**
+   * Streams this repository's board, stopping as soon as {@code max} tasks match the request.
+   * Meant for when there is nothing local to answer from.
+   *
+   * @param partialResults gets the best matches so far while the board is being read, may be null
+   * @return the matching tasks, null if the board could not be streamed
+   */
+  @Nullable
+  public List<KanbaneryTask> streamIssues(@Nullable String request, int max, long since,
+                                         @Nullable Consumer<List<KanbaneryTask>> partialResults) {
+    return session().streamIssues(request, max, since, partialResults);
+  }
+
+  /**
+   * Applied to the local copy right away and written to Kanbanery in the background by the {@link TaskStateQueue}.
+   */
   @Override
   public void setTaskState(Task task, TaskState state) throws Exception {
-    pl.project13.janbanery.resources.Task target = new pl.project13.janbanery.resources.Task();
-    target.setId(Long.valueOf(task.getId()));
+    Boolean readyToPull = readyToPull(state);
+    if (readyToPull != null) {
+      session().setReadyToPull(Long.valueOf(task.getId()), readyToPull);
+    }
+  }
 
-    TaskMarkFlow mark = janbanery().tasks().mark(target);
+  /**
+   * Like {@link #setTaskState}, done once the change was queued.
+   */
+  @NotNull
+  public ListenableFuture<Void> setTaskStateAsync(@NotNull final Task task, @NotNull final TaskState state) {
+    final BoardSession session = session();
+    return AsyncCalls.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        Boolean readyToPull = readyToPull(state);
+        if (readyToPull != null) {
+          session.setReadyToPull(Long.valueOf(task.getId()), readyToPull);
+        }
+        return null;
+      }
+    }, 0, TimeUnit.SECONDS);
+  }
 
+  /**
+   * @return whether the state means the task is ready to pull, null for states Kanbanery has nothing for
+   */
+  @Nullable
+  private static Boolean readyToPull(TaskState state) {
     if (state == TaskState.IN_PROGRESS || state == TaskState.OPEN || state == TaskState.OTHER || state == TaskState.REOPENED) {
-      mark.asNotReadyToPull();
+      return false;
     } else if (state == TaskState.RESOLVED) {
-      mark.asReadyToPull();
+      return true;
+    } else {
+      return null;
     }
   }
 
@@ -93,120 +227,104 @@ public class KanbaneryRepository extends BaseRepositoryImpl {
   @NotNull
   @Override
   public String getPresentableName() {
-    return "Kanbanery: " + myWorkspaceName + " / " + myProjectName;
+    int additionalBoards = KanbaneryBoard.parse(myAdditionalBoards).size();
+    return "Kanbanery: " + myWorkspaceName + " / " + myProjectName + (additionalBoards > 0 ? " (+" + additionalBoards + " boards)" : "");
   }
 
+  /**
+   * Waits for {@link #findTaskAsync} for at most {@link #FIND_TASK_WAIT_SECONDS}.
+   */
   @Nullable
   @Override
   public Task findTask(String id) {
     try {
-      pl.project13.janbanery.resources.Task task = janbanery().tasks().byId(Long.parseLong(id));
-
-      TaskType taskType = myTaskTypeCache.get(task.getTaskTypeId());
-
-      return new KanbaneryTask(task, taskType);
+      return AsyncCalls.await(findTaskAsync(Long.parseLong(id), 0, TimeUnit.SECONDS), FIND_TASK_WAIT_SECONDS, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      LOG.info("Kanbanery is slow to answer, not waiting for issue " + id + " any longer");
+      return null;
     } catch (Exception e) {
       LOG.warn("Cannot get issue " + id + ": " + e.getMessage());
       return null;
     }
   }
 
-  Janbanery janbanery() {
-    LOG.info("Reloading Janbanery...");
-
-    if (myJanbanery != null) {
-      myJanbanery.close();
-      myJanbanery = null;
-    }
-
-    try {
-      JanbaneryFactory factory = new JanbaneryFactory();
-
-      JanbaneryFactory.JanbaneryToWorkspace toWorkspace;
-      if (hasApiKey()) {
-        toWorkspace = factory.connectUsing(getApiKey());
-      } else {
-        toWorkspace = factory.connectUsing(getUsername(), getPassword());
-      }
-
-      if (myWorkspaceName.isEmpty() || myProjectName.isEmpty()) {
-        myJanbanery = toWorkspace.notDeclaringWorkspaceYet();
-      } else {
-        try {
-          myJanbanery = toWorkspace.toWorkspace(myWorkspaceName).usingProject(myProjectName);
-
-          preloadTaskTypes();
-          preloadUsers();
-
-        } catch (ProjectNotFoundException ex) {
-          myJanbanery = toWorkspace.toWorkspace(myWorkspaceName);
-        }
+  /**
+   * @param timeout cancels the call once it passes, 0 for no deadline
+   * @return the task, null if there is no such task
+   */
+  @NotNull
+  public ListenableFuture<KanbaneryTask> findTaskAsync(final long id, long timeout, @NotNull TimeUnit unit) {
+    final BoardSession session = session();
+    return AsyncCalls.submit(new Callable<KanbaneryTask>() {
+      @Override
+      public KanbaneryTask call() throws Exception {
+        return session.findTask(id);
       }
-
-    } catch (Exception e) {
-      LOG.warn("Unable to login to Kanbanery...", e);
-      JOptionPane.showMessageDialog(null,
-                                    "Please check your credentials and try again.",
-                                    "Unable to login to Kanbanery.com",
-                                    JOptionPane.WARNING_MESSAGE);
-      return null;
-    }
-
-    return myJanbanery;
+    }, timeout, unit);
   }
 
-  private void preloadUsers() {
-    new SwingWorker<List<User>, Object>() {
+  private String credentialsFingerprint() {
+    return credentialsFingerprint(myApiKey, myUsername, myPassword, ApiUrlConfiguration.baseUrl(myApiUrl));
+  }
 
-      public List<User> all;
+  /**
+   * @return what tells one login (on one Kanbanery server) from another, password included, so it's only ever kept in memory
+   */
+  @NotNull
+  static String credentialsFingerprint(String apiKey, String username, String password, @Nullable String baseUrl) {
+    return apiKey + '\u0000' + username + '\u0000' + password + (baseUrl == null ? "" : '\u0000' + baseUrl);
+  }
 
-      @Override
-      protected List<User> doInBackground() throws Exception {
-        return all = myJanbanery.users().allWithNobody();
-      }
+  private String accountFingerprint() {
+    return accountFingerprint(myApiKey, notNullize(myUsername), ApiUrlConfiguration.baseUrl(myApiUrl));
+  }
 
-      @Override
-      protected void done() {
-        try {
-          HashMap<Long, User> users = newHashMap();
-          for (User user : all) {
-            users.put(user.getId(), user);
-          }
-
-          myUsersCache = users;
-        } catch (NullPointerException e) {
-          LOG.warn("NullPointer while mapping task types...", e);
-        }
-      }
-    }.execute();
+  /**
+   * @return what tells one account (on one Kanbanery server) from another in file names: the username, or a digest of the
+   *         api key when logging in with one, never the password
+   */
+  @NotNull
+  static String accountFingerprint(String apiKey, String username, @Nullable String baseUrl) {
+    String account = isNotEmpty(apiKey) ? "key\u0000" + Digests.sha1(apiKey) : "user\u0000" + username;
+    return account + (baseUrl == null ? "" : '\u0000' + baseUrl);
   }
 
-  private void preloadTaskTypes() {
-    new SwingWorker<List<TaskType>, Object>() {
+  private String sessionFingerprint() {
+    return credentialsFingerprint() + '\u0000' + myWorkspaceName + '\u0000' + myProjectName;
+  }
 
-      public List<TaskType> all;
+  /**
+   * How many times did the session of this repository log in to Kanbanery, steady-state calls should not change this number.
+   */
+  public int getSessionsCreatedCount() {
+    return session().getSessionsCreatedCount();
+  }
 
-      @Override
-      protected List<TaskType> doInBackground() throws Exception {
-        return all = myJanbanery.taskTypes().all();
-      }
+  /**
+   * @return the task types, users and columns of the board as currently known, never blocks
+   */
+  @NotNull
+  public BoardMetadata getMetadata() {
+    return session().getMetadata();
+  }
 
+  /**
+   * @return the metadata once it was loaded, or once the timeout passed ({@link BoardMetadata#EMPTY} if it was never loaded)
+   */
+  @NotNull
+  public ListenableFuture<BoardMetadata> getMetadataAsync(final long timeout, @NotNull final TimeUnit unit) {
+    final BoardSession session = session();
+    return AsyncCalls.submit(new Callable<BoardMetadata>() {
       @Override
-      protected void done() {
-        try {
-          HashMap<Long, TaskType> tts = newHashMap();
-          for (TaskType taskType : all) {
-            tts.put(taskType.getId(), taskType);
-          }
-
-          myTaskTypeCache = tts;
-        } catch (NullPointerException ex) {
-          LOG.warn("NullPointer while mapping task types...", ex);
-        }
+      public BoardMetadata call() throws Exception {
+        return session.awaitMetadata(timeout, unit);
       }
-    }.execute();
+    }, 0, unit);
   }
 
+  /**
+   * Loads the "workspace/project" entries of the account from Kanbanery and remembers them in the {@link ProjectCatalog}.
+   */
   public List<String> findDisplayableProjects() {
     List<Workspace> workspaces = getWorkspaces();
     List<String> displayableProjects = new ArrayList<String>();
@@ -218,9 +336,26 @@ public class KanbaneryRepository extends BaseRepositoryImpl {
         displayableProjects.add(workspaceName + "/" + projectName);
       }
     }
+
+    if (!displayableProjects.isEmpty()) {
+      ProjectCatalog.getInstance().put(accountFingerprint(), displayableProjects);
+      // earlier versions named the file after the credentials, password included
+      ProjectCatalog.getInstance().forget(credentialsFingerprint());
+    }
     return displayableProjects;
   }
 
+  /**
+   * @return the projects last loaded with the current credentials, without asking Kanbanery; null if there are none
+   */
+  @Nullable
+  public List<String> findCachedDisplayableProjects() {
+    if (myUsername.isEmpty() && myApiKey.isEmpty()) {
+      return null;
+    }
+    return ProjectCatalog.getInstance().get(accountFingerprint());
+  }
+
   @Override
   public KanbaneryRepository clone() {
     return new KanbaneryRepository(this);
@@ -235,17 +370,74 @@ public class KanbaneryRepository extends BaseRepositoryImpl {
   }
 
   public void reloadJanbanery() {
-    closeJanbanery();
+    // log in again using the new credentials / workspace
+    session().reload();
+  }
+
+  /**
+   * @return the cache in front of {@link #findTask(String)}, mostly to look at its hit / miss / eviction counters
+   */
+  @NotNull
+  public ExpiringLruCache<Long, KanbaneryTask> getTaskCache() {
+    return session().getTaskCache();
+  }
 
-    // create an instance using the new credentials / workspace
-    janbanery();
+  @NotNull
+  public String getAdditionalBoards() {
+    return myAdditionalBoards;
   }
 
-  private void closeJanbanery() {
-    if (this.myJanbanery != null) {
-      myJanbanery.close();
-      myJanbanery = null; // reset the lazy getter
-    }
+  public void setAdditionalBoards(@Nullable String additionalBoards) {
+    myAdditionalBoards = additionalBoards == null ? "" : additionalBoards;
+  }
+
+  /**
+   * @return the base url of the Kanbanery API, empty for kanbanery.com
+   */
+  @NotNull
+  public String getApiUrl() {
+    return myApiUrl;
+  }
+
+  public void setApiUrl(@Nullable String apiUrl) {
+    myApiUrl = apiUrl == null ? "" : apiUrl.trim();
+  }
+
+  public int getSyncIntervalSeconds() {
+    return mySyncIntervalSeconds;
+  }
+
+  public void setSyncIntervalSeconds(int syncIntervalSeconds) {
+    mySyncIntervalSeconds = syncIntervalSeconds;
+  }
+
+  public int getMaxSyncBackoffSeconds() {
+    return myMaxSyncBackoffSeconds;
+  }
+
+  public void setMaxSyncBackoffSeconds(int maxSyncBackoffSeconds) {
+    myMaxSyncBackoffSeconds = maxSyncBackoffSeconds;
+  }
+
+  /**
+   * @return how old the local copy of the board is, -1 if it was not synced in the background yet
+   */
+  public long getLastSyncAgeMillis() {
+    return session().getLastSyncAgeMillis();
+  }
+
+  /**
+   * @return the delay before the next background sync, grows while idle or failing
+   */
+  public long getCurrentSyncDelayMillis() {
+    return session().getCurrentSyncDelayMillis();
+  }
+
+  /**
+   * @return true while Kanbanery is unreachable, the tasks returned are then the last ones known
+   */
+  public boolean isStale() {
+    return session().isStale();
   }
 
   public boolean hasApiKey() {
@@ -258,7 +450,8 @@ public class KanbaneryRepository extends BaseRepositoryImpl {
   }
 
   /**
-   * Set new credentials and return true if they have changed (a refresh of projects will be requirec)
+   * Set new credentials and return true if they have changed (a refresh of projects will be requirec).
+   * The next call switches to the session of the new credentials.
    */
   public boolean newCredentials(String user, String pass) {
     boolean changed = false;
@@ -271,10 +464,6 @@ public class KanbaneryRepository extends BaseRepositoryImpl {
 
     myApiKey = "";
 
-    if (changed) {
-      closeJanbanery();
-    }
-
     LOG.info("Switched to username/pass auth in UI");
     return changed;
   }
@@ -282,11 +471,6 @@ public class KanbaneryRepository extends BaseRepositoryImpl {
   public void useApiKey(String apiKey) {
     myUsername = "";
     myPassword = "";
-
-    if (notEqual(myApiKey, apiKey)) {
-      closeJanbanery();
-    }
-
     myApiKey = apiKey;
   }
 
@@ -301,12 +485,48 @@ public class KanbaneryRepository extends BaseRepositoryImpl {
     }
   }
 
+  /**
+   * @param timeout cancels the call once it passes, 0 for no deadline
+   */
+  @NotNull
+  public ListenableFuture<List<Workspace>> getWorkspacesAsync(long timeout, @NotNull TimeUnit unit) {
+    return AsyncCalls.submit(new Callable<List<Workspace>>() {
+      @Override
+      public List<Workspace> call() throws Exception {
+        return getWorkspaces();
+      }
+    }, timeout, unit);
+  }
+
+  /**
+   * {@link #findDisplayableProjects()} in the background.
+   *
+   * @param forceLogin log in again first, even if the credentials did not change
+   */
+  @NotNull
+  public ListenableFuture<List<String>> findDisplayableProjectsAsync(final boolean forceLogin, long timeout, @NotNull TimeUnit unit) {
+    return AsyncCalls.submit(new Callable<List<String>>() {
+      @Override
+      public List<String> call() throws Exception {
+        if (forceLogin) {
+          reloadJanbanery();
+        }
+        return findDisplayableProjects();
+      }
+    }, timeout, unit);
+  }
+
   public List<Workspace> getWorkspaces() {
     if(myUsername.isEmpty() && myApiKey.isEmpty()) {
       return Collections.emptyList();
     }
 
-    return janbanery().workspaces().all();
+    try {
+      return session().getWorkspaces();
+    } catch (Exception e) {
+      LOG.warn("Cannot get workspaces: " + e.getMessage());
+      return Collections.emptyList();
+    }
   }
 
   @NotNull
@@ -334,6 +554,15 @@ public class KanbaneryRepository extends BaseRepositoryImpl {
     if (myWorkspaceName != null ? !myWorkspaceName.equals(that.myWorkspaceName) : that.myWorkspaceName != null) {
       return false;
     }
+    if (!myAdditionalBoards.equals(that.myAdditionalBoards)) {
+      return false;
+    }
+    if (!myApiUrl.equals(that.myApiUrl)) {
+      return false;
+    }
+    if (mySyncIntervalSeconds != that.mySyncIntervalSeconds || myMaxSyncBackoffSeconds != that.myMaxSyncBackoffSeconds) {
+      return false;
+    }
 
     return true;
   }
@@ -342,6 +571,10 @@ public class KanbaneryRepository extends BaseRepositoryImpl {
   public int hashCode() {
     int result = myProjectName != null ? myProjectName.hashCode() : 0;
     result = 31 * result + (myWorkspaceName != null ? myWorkspaceName.hashCode() : 0);
+    result = 31 * result + myAdditionalBoards.hashCode();
+    result = 31 * result + myApiUrl.hashCode();
+    result = 31 * result + mySyncIntervalSeconds;
+    result = 31 * result + myMaxSyncBackoffSeconds;
     return result;
   }
 }
@@ -15,21 +15,31 @@
  */
 package pl.project13.intellij.kanbanery;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import com.intellij.tasks.config.TaskRepositoryEditor;
 import com.intellij.ui.CollectionComboBoxModel;
 import com.intellij.ui.DocumentAdapter;
+import com.intellij.util.Alarm;
 import com.intellij.util.Consumer;
 import org.jetbrains.annotations.Nullable;
 import pl.project13.intellij.kanbanery.KanbaneryRepository;
 
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.swing.event.DocumentEvent;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Dmitry Avdeev
@@ -38,6 +48,17 @@ public class KanbaneryRepositoryEditor extends TaskRepositoryEditor {
 
   private final static Logger LOG = Logger.getInstance("#com.intellij.tasks.kanbanery.KanbaneryRepositoryEditor");
 
+  private static final int RELOAD_DELAY_MILLIS = 800;
+  private static final long PROJECTS_TIMEOUT_SECONDS = 60;
+  private static final int MAX_SYNC_SECONDS = (int) TimeUnit.DAYS.toSeconds(1);
+
+  private static final Executor SWING_THREAD = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      SwingUtilities.invokeLater(command);
+    }
+  };
+
   protected JTextField myUsernameText;
   protected JPasswordField myPasswordText;
   protected JTextField myApiKeyText;
@@ -48,7 +69,19 @@ public class KanbaneryRepositoryEditor extends TaskRepositoryEditor {
   private JPanel myPanel;
   private JLabel myNeedsRefresh;
 
+  private JTextField myAdditionalBoardsText;
+  private JTextField myApiUrlText;
+  private JSpinner mySyncIntervalSpinner;
+  private JSpinner myMaxSyncBackoffSpinner;
+
   private boolean myApplying;
+
+  /**
+   * waits for the user to stop typing before logging in with the new credentials
+   */
+  private final Alarm myReloadAlarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD);
+  private ListenableFuture<List<String>> myProjectsLoader;
+
   protected final KanbaneryRepository myRepository;
   private final Consumer<KanbaneryRepository> myChangeListener;
 
@@ -56,13 +89,6 @@ public class KanbaneryRepositoryEditor extends TaskRepositoryEditor {
     myRepository = repository;
     myChangeListener = changeListener;
 
-    myRefreshButton.addActionListener(new ActionListener() {
-      public void actionPerformed(ActionEvent e) {
-//        TaskManager.getManager(project).testConnection(repository);
-        myRepository.reloadJanbanery();
-      }
-    });
-
     myNeedsRefresh.setVisible(false);
 
     if (repository.hasApiKey()) {
@@ -73,6 +99,11 @@ public class KanbaneryRepositoryEditor extends TaskRepositoryEditor {
       displayOnlyUsernameAndPass(repository);
     }
 
+    myAdditionalBoardsText.setText(repository.getAdditionalBoards());
+    myApiUrlText.setText(repository.getApiUrl());
+    mySyncIntervalSpinner.setModel(new SpinnerNumberModel(syncSeconds(repository.getSyncIntervalSeconds()), 1, MAX_SYNC_SECONDS, 1));
+    myMaxSyncBackoffSpinner.setModel(new SpinnerNumberModel(syncSeconds(repository.getMaxSyncBackoffSeconds()), 1, MAX_SYNC_SECONDS, 10));
+
     myRefreshButton.addActionListener(new ReloadJanbaneryActionListener());
 
     myUseApiKeyCheckBox.addActionListener(new ActionListener() {
@@ -87,19 +118,22 @@ public class KanbaneryRepositoryEditor extends TaskRepositoryEditor {
       }
     });
 
-    // reload janbanery and workspaces in UI
-    try {
-      new ReloadJanbaneryActionListener().actionPerformed(null);
-      myProjectsComboBox.setSelectedItem(repository.getSelectedItem());
-    } catch (Exception ignore) {
-      // i don't care if it failed here
-    }
+    // load workspaces in the background, the combo box is filled once they're there
+    reloadProjects(false);
 
     installListener(myUsernameText);
     installListener(myPasswordText);
     installListener(myUseApiKeyCheckBox);
     installListener(myApiKeyText);
     installListener(myProjectsComboBox);
+    installListener(myAdditionalBoardsText);
+    installListener(myApiUrlText);
+    installListener(mySyncIntervalSpinner);
+    installListener(myMaxSyncBackoffSpinner);
+  }
+
+  private static int syncSeconds(int configured) {
+    return Math.max(1, Math.min(configured, MAX_SYNC_SECONDS));
   }
 
   private void displayOnlyUsernameAndPass(KanbaneryRepository repository) {
@@ -141,6 +175,15 @@ public class KanbaneryRepositoryEditor extends TaskRepositoryEditor {
     });
   }
 
+  private void installListener(JSpinner spinner) {
+    spinner.addChangeListener(new ChangeListener() {
+      @Override
+      public void stateChanged(ChangeEvent e) {
+        doApply();
+      }
+    });
+  }
+
   protected void installListener(JTextField textField) {
     textField.getDocument().addDocumentListener(new DocumentAdapter() {
       @Override
@@ -178,8 +221,10 @@ public class KanbaneryRepositoryEditor extends TaskRepositoryEditor {
     // use api key
     if (myUseApiKeyCheckBox.isSelected()) {
       String apiKey = myApiKeyText.getText().trim();
-      myRepository.useApiKey(apiKey);
-      myNeedsRefresh.setVisible(true);
+      if (!apiKey.equals(myRepository.getApiKey())) {
+        myRepository.useApiKey(apiKey);
+        scheduleReload();
+      }
     } else {
       @SuppressWarnings("deprecation")
       String pass = myPasswordText.getText().trim();
@@ -187,12 +232,23 @@ public class KanbaneryRepositoryEditor extends TaskRepositoryEditor {
 
       // use new credentials
       if (myRepository.newCredentials(user, pass)) {
-        myNeedsRefresh.setVisible(true);
+        scheduleReload();
       }
     }
 
+    String apiUrl = myApiUrlText.getText().trim();
+    if (!apiUrl.equals(myRepository.getApiUrl())) {
+      // another server, other workspaces
+      myRepository.setApiUrl(apiUrl);
+      scheduleReload();
+    }
+
     setupWorkspaceAndProject();
 
+    myRepository.setAdditionalBoards(myAdditionalBoardsText.getText().trim());
+    myRepository.setSyncIntervalSeconds((Integer) mySyncIntervalSpinner.getValue());
+    myRepository.setMaxSyncBackoffSeconds((Integer) myMaxSyncBackoffSpinner.getValue());
+
     myChangeListener.consume(myRepository);
   }
 
@@ -209,28 +265,73 @@ public class KanbaneryRepositoryEditor extends TaskRepositoryEditor {
     }
   }
 
-  private class ReloadJanbaneryActionListener implements ActionListener {
-    @Override
-    public void actionPerformed(@Nullable ActionEvent e) {
-      myNeedsRefresh.setVisible(false);
+  /**
+   * Reloads the projects once the credentials did not change for {@link #RELOAD_DELAY_MILLIS}.
+   */
+  private void scheduleReload() {
+    myNeedsRefresh.setVisible(true);
+
+    myReloadAlarm.cancelAllRequests();
+    myReloadAlarm.addRequest(new Runnable() {
+      @Override
+      public void run() {
+        reloadProjects(false);
+      }
+    }, RELOAD_DELAY_MILLIS);
+  }
 
-      new SwingWorker() {
+  /**
+   * Loads the workspaces and projects in the background, cancelling a load that is still running.
+   *
+   * @param forceLogin log in again even if the credentials did not change
+   */
+  private void reloadProjects(boolean forceLogin) {
+    myReloadAlarm.cancelAllRequests();
+
+    // show what we know for these credentials right away, the loader will revalidate it
+    List<String> cachedProjects = myRepository.findCachedDisplayableProjects();
+    if (cachedProjects != null) {
+      showProjects(cachedProjects);
+    }
 
-        @Override
-        protected Object doInBackground() throws Exception {
-          myRepository.reloadJanbanery();
-          return null;
-        }
+    if (myProjectsLoader != null) {
+      // not interrupting it, the login it may be doing is shared with the repository's other users
+      myProjectsLoader.cancel(false);
+    }
+    final ListenableFuture<List<String>> loader = myRepository.findDisplayableProjectsAsync(forceLogin, PROJECTS_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    myProjectsLoader = loader;
 
-        @Override
-        protected void done() {
-          List<String> displayableProjects = myRepository.findDisplayableProjects();
-          String selectedItem = myRepository.getSelectedItem();
+    Futures.addCallback(loader, new FutureCallback<List<String>>() {
+      @Override
+      public void onSuccess(List<String> projects) {
+        if (myProjectsLoader != loader) {
+          return; // a newer load is on its way
+        }
+        showProjects(projects);
+        myNeedsRefresh.setVisible(false);
+      }
 
-          CollectionComboBoxModel model = new CollectionComboBoxModel(displayableProjects, selectedItem);
-          myProjectsComboBox.setModel(model);
+      @Override
+      public void onFailure(Throwable t) {
+        if (myProjectsLoader != loader) {
+          return; // cancelled for a newer load
         }
-      }.execute();
+        LOG.info("Unable to load Kanbanery projects: " + (t instanceof CancellationException ? "timed out" : t.getMessage()));
+      }
+    }, SWING_THREAD);
+  }
+
+  private void showProjects(List<String> displayableProjects) {
+    String selectedItem = myRepository.getSelectedItem();
+
+    CollectionComboBoxModel model = new CollectionComboBoxModel(new ArrayList<String>(displayableProjects), selectedItem);
+    myProjectsComboBox.setModel(model);
+  }
+
+  private class ReloadJanbaneryActionListener implements ActionListener {
+    @Override
+    public void actionPerformed(@Nullable ActionEvent e) {
+      reloadProjects(true);
     }
   }
 }
@@ -0,0 +1,203 @@
+package pl.project13.intellij.kanbanery.cache;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import pl.project13.intellij.kanbanery.sync.BackgroundExecutor;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.*;
+
+import static com.google.common.collect.Maps.newConcurrentMap;
+
+/**
+ * Gravatar images of comment authors, kept in a size-capped directory on disk, keyed by url and size.
+ * Comments refer to the files on disk, so rendering a comment thread does not download the same avatar over and over again.
+ * <p/>
+ * Which avatars were recently found on disk is remembered in a small LRU in front of the disk, so asking for one never
+ * touches the disk: an avatar not in there is looked up on disk (and downloaded if it's not there) in the background,
+ * concurrent requests for it share that work.
+ * An avatar that failed to download is not asked for again for a while.
+ *
+ * @author Konrad Malawski
+ */
+public class AvatarCache {
+
+  private final static Logger LOG = Logger.getInstance("#pl.project13.intellij.kanbanery.cache.AvatarCache");
+
+  private static final AvatarCache ourInstance = new AvatarCache(new File(PathManager.getSystemPath(), "kanbanery/avatars"));
+
+  private static final int MAX_LOCAL_ENTRIES = 512;
+  private static final long RECHECK_LOCAL_AFTER_MILLIS = TimeUnit.HOURS.toMillis(1);
+  private static final int MAX_FAILED_ENTRIES = 256;
+  private static final long RETRY_FAILED_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(30);
+  private static final long MAX_DISK_BYTES = 10 * 1024 * 1024;
+  private static final int MAX_AVATAR_BYTES = 512 * 1024;
+  private static final int TIMEOUT_MILLIS = 10000;
+
+  private static final ExecutorService ourDownloaders = BackgroundExecutor.newBoundedPool("Kanbanery avatars", 2);
+
+  private final File myDir;
+
+  /**
+   * {@code file:} urls of avatars recently found on disk, by remote url
+   */
+  private final ExpiringLruCache<String, String> myLocalUrls = new ExpiringLruCache<String, String>(MAX_LOCAL_ENTRIES, RECHECK_LOCAL_AFTER_MILLIS);
+  private final ExpiringLruCache<String, Boolean> myFailed = new ExpiringLruCache<String, Boolean>(MAX_FAILED_ENTRIES, RETRY_FAILED_AFTER_MILLIS);
+  private final ConcurrentMap<String, FutureTask<File>> myInFlight = newConcurrentMap();
+
+  public static AvatarCache getInstance() {
+    return ourInstance;
+  }
+
+  AvatarCache(@NotNull File dir) {
+    myDir = dir;
+  }
+
+  /**
+   * Cheap enough for the event dispatch thread, it only looks at what is in memory.
+   *
+   * @return a {@code file:} url of the cached avatar, the remote url if it is still being fetched,
+   *         or null if fetching it failed recently
+   */
+  @Nullable
+  public String urlOf(@NotNull String avatarUrl, int size) {
+    String remoteUrl = remoteUrl(avatarUrl, size);
+    String localUrl = myLocalUrls.get(remoteUrl);
+    if (localUrl != null) {
+      return localUrl;
+    }
+    if (myFailed.get(remoteUrl) != null) {
+      return null;
+    }
+
+    fetchInBackground(remoteUrl);
+    return remoteUrl;
+  }
+
+  private void fetchInBackground(final String remoteUrl) {
+    if (myInFlight.containsKey(remoteUrl)) {
+      return;
+    }
+
+    FutureTask<File> download = new FutureTask<File>(new Callable<File>() {
+      @Override
+      public File call() throws Exception {
+        File file = fileFor(remoteUrl);
+        try {
+          if (!file.isFile()) {
+            byte[] image = fetch(remoteUrl);
+
+            FileUtil.createParentDirs(file);
+            File tmp = new File(file.getPath() + ".tmp");
+            FileUtil.writeToFile(tmp, image);
+            FileUtil.delete(file);
+            if (!tmp.renameTo(file)) {
+              FileUtil.delete(tmp);
+              throw new IOException("Unable to move " + tmp + " to " + file);
+            }
+
+            trimDisk();
+          }
+
+          myLocalUrls.put(remoteUrl, toUrl(file));
+          return file;
+        } catch (IOException e) {
+          LOG.info("Unable to download avatar " + remoteUrl + ": " + e.getMessage());
+          myFailed.put(remoteUrl, Boolean.TRUE);
+          throw e;
+        } finally {
+          myInFlight.remove(remoteUrl);
+        }
+      }
+    });
+
+    if (myInFlight.putIfAbsent(remoteUrl, download) == null) {
+      ourDownloaders.execute(download);
+    }
+  }
+
+  private static byte[] fetch(String remoteUrl) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(remoteUrl).openConnection();
+    connection.setConnectTimeout(TIMEOUT_MILLIS);
+    connection.setReadTimeout(TIMEOUT_MILLIS);
+
+    InputStream in = connection.getInputStream();
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+        if (out.size() > MAX_AVATAR_BYTES) {
+          throw new IOException("Avatar larger than " + MAX_AVATAR_BYTES + " bytes");
+        }
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Deletes the oldest avatars until the cache directory fits into {@link #MAX_DISK_BYTES} again.
+   */
+  private synchronized void trimDisk() {
+    File[] files = myDir.listFiles();
+    if (files == null) {
+      return;
+    }
+
+    long total = 0;
+    for (File file : files) {
+      total += file.length();
+    }
+    if (total <= MAX_DISK_BYTES) {
+      return;
+    }
+
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        long diff = a.lastModified() - b.lastModified();
+        return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+      }
+    });
+    for (File file : files) {
+      if (total <= MAX_DISK_BYTES) {
+        break;
+      }
+      total -= file.length();
+      FileUtil.delete(file);
+    }
+
+    for (String remoteUrl : myLocalUrls.keys()) {
+      if (!fileFor(remoteUrl).isFile()) {
+        myLocalUrls.invalidate(remoteUrl);
+      }
+    }
+  }
+
+  private File fileFor(String remoteUrl) {
+    return new File(myDir, Digests.sha1(remoteUrl) + ".img");
+  }
+
+  private static String remoteUrl(String avatarUrl, int size) {
+    return avatarUrl + (avatarUrl.contains("?") ? "&" : "?") + "s=" + size;
+  }
+
+  private static String toUrl(File file) {
+    try {
+      return file.toURI().toURL().toExternalForm();
+    } catch (IOException e) {
+      return "file:" + file.getAbsolutePath();
+    }
+  }
+}
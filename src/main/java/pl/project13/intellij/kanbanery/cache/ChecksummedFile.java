@@ -0,0 +1,117 @@
+package pl.project13.intellij.kanbanery.cache;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The layout of the binary files the plugin keeps in the IDE system directory (board snapshots, commit indexes):
+ * magic, schema version, the records, then a CRC32 of everything before it.
+ * <p/>
+ * Files are written to a temporary file first and then renamed, so a crash never leaves a half written file behind.
+ * A file with another magic or version, or a broken checksum, is deleted and treated as missing.
+ *
+ * @author Konrad Malawski
+ */
+public final class ChecksummedFile {
+
+  private final static Logger LOG = Logger.getInstance("#pl.project13.intellij.kanbanery.cache.ChecksummedFile");
+
+  /**
+   * Writes the records, everything between the schema version and the checksum.
+   */
+  public interface Writer {
+    void write(@NotNull DataOutputStream out) throws IOException;
+  }
+
+  /**
+   * Reads back what the {@link Writer} wrote, throwing if it makes no sense.
+   */
+  public interface Reader<T> {
+    @NotNull
+    T read(@NotNull DataInputStream in) throws IOException;
+  }
+
+  private ChecksummedFile() {
+  }
+
+  public static void write(@NotNull File file, int magic, int version, @NotNull Writer writer) throws IOException {
+    FileUtil.createParentDirs(file);
+    File tmp = new File(file.getPath() + ".tmp");
+
+    CRC32 crc = new CRC32();
+    DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)), crc));
+    try {
+      out.writeInt(magic);
+      out.writeInt(version);
+      writer.write(out);
+
+      out.flush();
+      out.writeLong(crc.getValue());
+    } finally {
+      out.close();
+    }
+
+    FileUtil.delete(file);
+    if (!tmp.renameTo(file)) {
+      FileUtil.delete(tmp);
+      throw new IOException("Unable to move " + tmp + " to " + file);
+    }
+  }
+
+  /**
+   * @return what was read, or null if there is no such file or it's unusable
+   */
+  @Nullable
+  public static <T> T read(@NotNull File file, int magic, int version, @NotNull Reader<T> reader) {
+    if (!file.isFile()) {
+      return null;
+    }
+
+    CRC32 crc = new CRC32();
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), crc));
+
+      if (in.readInt() != magic) {
+        throw new IOException("Unexpected file type");
+      }
+      int fileVersion = in.readInt();
+      if (fileVersion != version) {
+        throw new IOException("Unsupported version " + fileVersion);
+      }
+
+      T read = reader.read(in);
+
+      long expectedCrc = crc.getValue();
+      if (in.readLong() != expectedCrc) {
+        throw new IOException("Checksum mismatch");
+      }
+      return read;
+    } catch (Exception e) {
+      LOG.info("Discarding " + file + ": " + e.getMessage());
+      close(in);
+      in = null;
+      FileUtil.delete(file);
+      return null;
+    } finally {
+      close(in);
+    }
+  }
+
+  private static void close(@Nullable Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException ignore) {
+        // nothing to do about it
+      }
+    }
+  }
+}
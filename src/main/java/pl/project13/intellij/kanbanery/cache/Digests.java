@@ -0,0 +1,30 @@
+package pl.project13.intellij.kanbanery.cache;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.security.MessageDigest;
+
+/**
+ * Turns arbitrary strings (urls, credentials...) into safe file names, without keeping the original value around.
+ *
+ * @author Konrad Malawski
+ */
+public final class Digests {
+
+  private Digests() {
+  }
+
+  @NotNull
+  public static String sha1(@NotNull String value) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    } catch (Exception e) {
+      throw new IllegalStateException("SHA-1 not available", e);
+    }
+  }
+}
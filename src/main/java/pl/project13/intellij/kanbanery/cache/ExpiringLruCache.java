@@ -0,0 +1,114 @@
+package pl.project13.intellij.kanbanery.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small size- and time-bounded cache: the least recently used entry goes first once {@code maxSize} is reached,
+ * and entries older than {@code ttlMillis} are treated as missing.
+ *
+ * @author Konrad Malawski
+ */
+public class ExpiringLruCache<K, V> {
+
+  private final int myMaxSize;
+  private final long myTtlMillis;
+
+  // guarded by this
+  private final LinkedHashMap<K, Entry<V>> myEntries;
+
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+  private final AtomicLong myEvictions = new AtomicLong();
+
+  public ExpiringLruCache(int maxSize, long ttlMillis) {
+    myMaxSize = maxSize;
+    myTtlMillis = ttlMillis;
+    myEntries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+        if (size() > myMaxSize) {
+          myEvictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  @Nullable
+  public synchronized V get(@NotNull K key) {
+    Entry<V> entry = myEntries.get(key);
+    if (entry == null) {
+      myMisses.incrementAndGet();
+      return null;
+    }
+
+    if (isExpired(entry, System.currentTimeMillis())) {
+      myEntries.remove(key);
+      myEvictions.incrementAndGet();
+      myMisses.incrementAndGet();
+      return null;
+    }
+
+    myHits.incrementAndGet();
+    return entry.value;
+  }
+
+  public synchronized void put(@NotNull K key, @NotNull V value) {
+    myEntries.put(key, new Entry<V>(value, System.currentTimeMillis()));
+  }
+
+  public synchronized void invalidate(@NotNull K key) {
+    myEntries.remove(key);
+  }
+
+  /**
+   * @return a copy of the keys currently held, expired ones included
+   */
+  @NotNull
+  public synchronized List<K> keys() {
+    return new ArrayList<K>(myEntries.keySet());
+  }
+
+  private boolean isExpired(Entry<V> entry, long now) {
+    return now - entry.createdAt > myTtlMillis;
+  }
+
+  public synchronized int size() {
+    return myEntries.size();
+  }
+
+  public long getHitCount() {
+    return myHits.get();
+  }
+
+  public long getMissCount() {
+    return myMisses.get();
+  }
+
+  public long getEvictionCount() {
+    return myEvictions.get();
+  }
+
+  @Override
+  public String toString() {
+    return "hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + ", size=" + size();
+  }
+
+  private static class Entry<V> {
+    final V value;
+    final long createdAt;
+
+    Entry(V value, long createdAt) {
+      this.value = value;
+      this.createdAt = createdAt;
+    }
+  }
+}
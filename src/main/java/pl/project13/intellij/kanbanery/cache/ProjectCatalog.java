@@ -0,0 +1,114 @@
+package pl.project13.intellij.kanbanery.cache;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.collect.Maps.newConcurrentMap;
+
+/**
+ * The "workspace/project" entries an account can choose from, remembered per account (in memory and on disk)
+ * so the settings page can show them right away while they're being reloaded from Kanbanery.
+ * <p/>
+ * Accounts are identified by a fingerprint without any secret in it (no password), whose SHA-1 is the file name.
+ *
+ * @author Konrad Malawski
+ */
+public class ProjectCatalog {
+
+  private final static Logger LOG = Logger.getInstance("#pl.project13.intellij.kanbanery.cache.ProjectCatalog");
+
+  private static final ProjectCatalog ourInstance = new ProjectCatalog(new File(PathManager.getSystemPath(), "kanbanery/catalogs"));
+
+  private final File myDir;
+  private final ConcurrentMap<String, List<String>> myCatalogs = newConcurrentMap();
+
+  public static ProjectCatalog getInstance() {
+    return ourInstance;
+  }
+
+  ProjectCatalog(@NotNull File dir) {
+    myDir = dir;
+  }
+
+  /**
+   * @param account the account fingerprint, which must not contain the password
+   * @return the projects last seen for the account, null if we never saw any
+   */
+  @Nullable
+  public List<String> get(@NotNull String account) {
+    String fingerprint = Digests.sha1(account);
+
+    List<String> projects = myCatalogs.get(fingerprint);
+    if (projects != null) {
+      return projects;
+    }
+
+    File file = fileFor(fingerprint);
+    if (!file.isFile()) {
+      return null;
+    }
+
+    try {
+      projects = new ArrayList<String>();
+      for (String line : FileUtil.loadFile(file, "UTF-8").split("\n")) {
+        if (!line.trim().isEmpty()) {
+          projects.add(line.trim());
+        }
+      }
+      projects = Collections.unmodifiableList(projects);
+      myCatalogs.putIfAbsent(fingerprint, projects);
+      return projects;
+    } catch (IOException e) {
+      LOG.info("Unable to read project catalog " + file + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Remembers the projects, the file is only rewritten if they actually changed.
+   */
+  public void put(@NotNull String account, @NotNull List<String> projects) {
+    String fingerprint = Digests.sha1(account);
+    List<String> copy = Collections.unmodifiableList(new ArrayList<String>(projects));
+
+    List<String> previous = myCatalogs.put(fingerprint, copy);
+    if (copy.equals(previous)) {
+      return;
+    }
+
+    File file = fileFor(fingerprint);
+    try {
+      StringBuilder content = new StringBuilder();
+      for (String project : copy) {
+        content.append(project).append('\n');
+      }
+      FileUtil.createParentDirs(file);
+      FileUtil.writeToFile(file, content.toString().getBytes("UTF-8"));
+    } catch (IOException e) {
+      LOG.info("Unable to write project catalog " + file + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Forgets the projects of the account, in memory and on disk.
+   */
+  public void forget(@NotNull String account) {
+    String fingerprint = Digests.sha1(account);
+    myCatalogs.remove(fingerprint);
+    FileUtil.delete(fileFor(fingerprint));
+  }
+
+  private File fileFor(String fingerprint) {
+    return new File(myDir, fingerprint + ".txt");
+  }
+}
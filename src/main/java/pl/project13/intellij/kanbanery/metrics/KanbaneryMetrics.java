@@ -0,0 +1,266 @@
+package pl.project13.intellij.kanbanery.metrics;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import pl.project13.intellij.kanbanery.sync.BackgroundExecutor;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Application wide counters and latencies of everything the plugin asks Kanbanery for ("network" operations,
+ * e.g. {@link #TASKS_ALL}) and of the work done locally with the answers ("local." operations), so both can be told apart.
+ * <p/>
+ * Published as a JMX MBean and summarized in the log every {@link #SUMMARY_PERIOD_MINUTES} minutes if anything happened.
+ *
+ * @author Konrad Malawski
+ */
+public class KanbaneryMetrics implements KanbaneryMetricsMBean {
+
+  private final static Logger LOG = Logger.getInstance("#pl.project13.intellij.kanbanery.metrics.KanbaneryMetrics");
+
+  public static final String LOGIN = "login";
+  public static final String WORKSPACES = "workspaces";
+  public static final String TASKS_ALL = "tasks.all";
+  public static final String TASKS_STREAM = "tasks.stream";
+  public static final String TASKS_BY_ID = "tasks.byId";
+  public static final String TASKS_MARK = "tasks.mark";
+  public static final String TASK_TYPES = "taskTypes";
+  public static final String USERS = "users";
+  public static final String COLUMNS = "columns";
+  public static final String COMMENTS = "comments";
+
+  public static final String LOCAL_MERGE = "local.merge";
+  public static final String LOCAL_SEARCH = "local.search";
+
+  private static final String OBJECT_NAME = "pl.project13.intellij.kanbanery:type=Metrics";
+  private static final long SUMMARY_PERIOD_MINUTES = 10;
+
+  private static final KanbaneryMetrics ourInstance = new KanbaneryMetrics();
+
+  static {
+    ourInstance.register();
+  }
+
+  /**
+   * A value looked up whenever it is shown, like a cache hit ratio or the age of a board.
+   */
+  public interface Gauge {
+    double value();
+  }
+
+  /**
+   * Started before an operation and finished once it's done.
+   */
+  public class Timer {
+    private final String myOperation;
+    private final long myStart = System.nanoTime();
+
+    private Timer(String operation) {
+      myOperation = operation;
+    }
+
+    public void success(long items) {
+      stats(myOperation).record(System.nanoTime() - myStart, true, items, 0);
+    }
+
+    public void success(long items, long bytes) {
+      stats(myOperation).record(System.nanoTime() - myStart, true, items, bytes);
+    }
+
+    /**
+     * A conditional call answered with "not modified".
+     */
+    public void notModified() {
+      stats(myOperation).record(System.nanoTime() - myStart, true, true, 0, 0);
+    }
+
+    public void failure() {
+      stats(myOperation).record(System.nanoTime() - myStart, false, 0, 0);
+    }
+  }
+
+  private final ConcurrentMap<String, OperationStats> myOperations = new ConcurrentHashMap<String, OperationStats>();
+  private final ConcurrentMap<String, Gauge> myGauges = new ConcurrentHashMap<String, Gauge>();
+
+  private volatile long myCallsAtLastSummary;
+
+  private KanbaneryMetrics() {
+  }
+
+  @NotNull
+  public static KanbaneryMetrics getInstance() {
+    return ourInstance;
+  }
+
+  @NotNull
+  public Timer start(@NotNull String operation) {
+    return new Timer(operation);
+  }
+
+  /**
+   * @return how many resources the result contained, the size of a collection or 1 for anything else
+   */
+  public static long itemsOf(Object result) {
+    if (result == null) {
+      return 0;
+    }
+    return result instanceof Collection ? ((Collection<?>) result).size() : 1;
+  }
+
+  /**
+   * Registers (or replaces) a gauge, its name should say what it belongs to, e.g. "workspace/project taskCache.hitRatio".
+   */
+  public void setGauge(@NotNull String name, @NotNull Gauge gauge) {
+    myGauges.put(name, gauge);
+  }
+
+  public void removeGauge(@NotNull String name) {
+    myGauges.remove(name);
+  }
+
+  /**
+   * @return the stats of the operation, added if it was not recorded yet (to record it, the getters only look)
+   */
+  @NotNull
+  public OperationStats stats(@NotNull String operation) {
+    OperationStats stats = myOperations.get(operation);
+    if (stats == null) {
+      OperationStats created = new OperationStats(operation);
+      stats = myOperations.putIfAbsent(operation, created);
+      if (stats == null) {
+        stats = created;
+      }
+    }
+    return stats;
+  }
+
+  @Override
+  public String[] getOperationNames() {
+    return new TreeMap<String, OperationStats>(myOperations).keySet().toArray(new String[myOperations.size()]);
+  }
+
+  @Override
+  public long getCalls(String operation) {
+    OperationStats stats = myOperations.get(operation);
+    return stats == null ? 0 : stats.getCalls();
+  }
+
+  @Override
+  public long getFailures(String operation) {
+    OperationStats stats = myOperations.get(operation);
+    return stats == null ? 0 : stats.getFailures();
+  }
+
+  @Override
+  public double getLatencyPercentileMillis(String operation, double percentile) {
+    OperationStats stats = myOperations.get(operation);
+    return stats == null ? Double.NaN : stats.getLatency().getPercentileMillis(percentile);
+  }
+
+  @Override
+  public double getMeanLatencyMillis(String operation) {
+    OperationStats stats = myOperations.get(operation);
+    return stats == null ? Double.NaN : stats.getLatency().getMeanMillis();
+  }
+
+  @Override
+  public long getItems(String operation) {
+    OperationStats stats = myOperations.get(operation);
+    return stats == null ? 0 : stats.getItems();
+  }
+
+  @Override
+  public long getBytes(String operation) {
+    OperationStats stats = myOperations.get(operation);
+    return stats == null ? 0 : stats.getBytes();
+  }
+
+  @Override
+  public long getNotModified(String operation) {
+    OperationStats stats = myOperations.get(operation);
+    return stats == null ? 0 : stats.getNotModified();
+  }
+
+  @Override
+  public double getNotModifiedRatio(String operation) {
+    OperationStats stats = myOperations.get(operation);
+    return stats == null ? Double.NaN : stats.getNotModifiedRatio();
+  }
+
+  @Override
+  public String[] getGaugeNames() {
+    return new TreeMap<String, Gauge>(myGauges).keySet().toArray(new String[0]);
+  }
+
+  @Override
+  public double getGauge(String gauge) {
+    Gauge found = myGauges.get(gauge);
+    return found == null ? Double.NaN : found.value();
+  }
+
+  @Override
+  public String getSummary() {
+    StringBuilder summary = new StringBuilder();
+    for (OperationStats stats : new TreeMap<String, OperationStats>(myOperations).values()) {
+      if (stats.getCalls() > 0) {
+        summary.append(stats).append('\n');
+      }
+    }
+    for (Map.Entry<String, Gauge> gauge : new TreeMap<String, Gauge>(myGauges).entrySet()) {
+      summary.append(gauge.getKey()).append(": ").append(String.format("%.2f", gauge.getValue().value())).append('\n');
+    }
+    return summary.toString();
+  }
+
+  @Override
+  public void reset() {
+    for (OperationStats stats : myOperations.values()) {
+      stats.reset();
+    }
+    myCallsAtLastSummary = 0;
+  }
+
+  private void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(this, name);
+      }
+    } catch (Exception e) {
+      LOG.info("Unable to publish Kanbanery metrics over JMX: " + e.getMessage());
+    }
+
+    BackgroundExecutor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        logSummary();
+      }
+    }, SUMMARY_PERIOD_MINUTES, SUMMARY_PERIOD_MINUTES, TimeUnit.MINUTES);
+  }
+
+  private void logSummary() {
+    long calls = 0;
+    for (OperationStats stats : myOperations.values()) {
+      calls += stats.getCalls();
+    }
+    if (calls == myCallsAtLastSummary) {
+      return;
+    }
+    myCallsAtLastSummary = calls;
+
+    try {
+      LOG.info("Kanbanery metrics:\n" + getSummary());
+    } catch (RuntimeException e) {
+      LOG.info("Unable to summarize Kanbanery metrics: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package pl.project13.intellij.kanbanery.metrics;
+
+/**
+ * What {@link KanbaneryMetrics} shows in JConsole / VisualVM, under {@code pl.project13.intellij.kanbanery:type=Metrics}.
+ * Asking for an operation that was never recorded doesn't add it: counts are 0, latencies and ratios NaN.
+ *
+ * @author Konrad Malawski
+ */
+public interface KanbaneryMetricsMBean {
+
+  String[] getOperationNames();
+
+  long getCalls(String operation);
+
+  long getFailures(String operation);
+
+  double getLatencyPercentileMillis(String operation, double percentile);
+
+  double getMeanLatencyMillis(String operation);
+
+  long getItems(String operation);
+
+  long getBytes(String operation);
+
+  long getNotModified(String operation);
+
+  double getNotModifiedRatio(String operation);
+
+  String[] getGaugeNames();
+
+  double getGauge(String gauge);
+
+  /**
+   * @return one line per operation and gauge, the same as logged periodically
+   */
+  String getSummary();
+
+  void reset();
+}
@@ -0,0 +1,99 @@
+package pl.project13.intellij.kanbanery.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies counted in exponentially growing buckets (100 microseconds up to a few minutes, each 1.5 times the previous one),
+ * so recording is lock-free and constant in space while percentiles stay within 50% of the real value.
+ *
+ * @author Konrad Malawski
+ */
+public class LatencyHistogram {
+
+  private static final long[] BOUNDS_NANOS = bounds();
+
+  private final AtomicLongArray myBuckets = new AtomicLongArray(BOUNDS_NANOS.length + 1);
+  private final AtomicLong myCount = new AtomicLong();
+  private final AtomicLong myTotalNanos = new AtomicLong();
+  private final AtomicLong myMaxNanos = new AtomicLong();
+
+  public void record(long nanos) {
+    myBuckets.incrementAndGet(bucketOf(nanos));
+    myCount.incrementAndGet();
+    myTotalNanos.addAndGet(nanos);
+
+    long max = myMaxNanos.get();
+    while (nanos > max && !myMaxNanos.compareAndSet(max, nanos)) {
+      max = myMaxNanos.get();
+    }
+  }
+
+  public long getCount() {
+    return myCount.get();
+  }
+
+  public double getMeanMillis() {
+    long count = myCount.get();
+    return count == 0 ? 0 : toMillis(myTotalNanos.get()) / count;
+  }
+
+  public double getMaxMillis() {
+    return toMillis(myMaxNanos.get());
+  }
+
+  /**
+   * @param percentile 0 to 100
+   * @return the upper bound of the bucket the percentile falls into, never more than the maximum seen
+   */
+  public double getPercentileMillis(double percentile) {
+    long count = myCount.get();
+    if (count == 0) {
+      return 0;
+    }
+
+    long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+    long seen = 0;
+    for (int i = 0; i < myBuckets.length(); i++) {
+      seen += myBuckets.get(i);
+      if (seen >= rank && seen > 0) {
+        long bound = i < BOUNDS_NANOS.length ? BOUNDS_NANOS[i] : Long.MAX_VALUE;
+        return toMillis(Math.min(bound, myMaxNanos.get()));
+      }
+    }
+    return getMaxMillis();
+  }
+
+  public void reset() {
+    for (int i = 0; i < myBuckets.length(); i++) {
+      myBuckets.set(i, 0);
+    }
+    myCount.set(0);
+    myTotalNanos.set(0);
+    myMaxNanos.set(0);
+  }
+
+  private static int bucketOf(long nanos) {
+    for (int i = 0; i < BOUNDS_NANOS.length; i++) {
+      if (nanos <= BOUNDS_NANOS[i]) {
+        return i;
+      }
+    }
+    return BOUNDS_NANOS.length;
+  }
+
+  private static double toMillis(long nanos) {
+    return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  private static long[] bounds() {
+    long[] bounds = new long[40];
+    double bound = TimeUnit.MICROSECONDS.toNanos(100);
+    for (int i = 0; i < bounds.length; i++) {
+      bounds[i] = (long) bound;
+      bound *= 1.5;
+    }
+    return bounds;
+  }
+}
@@ -0,0 +1,102 @@
+package pl.project13.intellij.kanbanery.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latencies of one kind of operation, e.g. all {@code tasks().all()} calls.
+ *
+ * @author Konrad Malawski
+ */
+public class OperationStats {
+
+  private final String myName;
+  private final LatencyHistogram myLatency = new LatencyHistogram();
+  private final AtomicLong myFailures = new AtomicLong();
+  private final AtomicLong myItems = new AtomicLong();
+  private final AtomicLong myBytes = new AtomicLong();
+  private final AtomicLong myNotModified = new AtomicLong();
+
+  OperationStats(String name) {
+    myName = name;
+  }
+
+  void record(long nanos, boolean success, long items, long bytes) {
+    record(nanos, success, false, items, bytes);
+  }
+
+  void record(long nanos, boolean success, boolean notModified, long items, long bytes) {
+    myLatency.record(nanos);
+    if (notModified) {
+      myNotModified.incrementAndGet();
+    }
+    if (!success) {
+      myFailures.incrementAndGet();
+    }
+    if (items > 0) {
+      myItems.addAndGet(items);
+    }
+    if (bytes > 0) {
+      myBytes.addAndGet(bytes);
+    }
+  }
+
+  public String getName() {
+    return myName;
+  }
+
+  public long getCalls() {
+    return myLatency.getCount();
+  }
+
+  public long getFailures() {
+    return myFailures.get();
+  }
+
+  /**
+   * @return how many resources (tasks, users...) these calls returned, in total
+   */
+  public long getItems() {
+    return myItems.get();
+  }
+
+  /**
+   * @return response bytes, for the calls that know them
+   */
+  public long getBytes() {
+    return myBytes.get();
+  }
+
+  /**
+   * @return how many conditional calls were answered with "not modified", costing no download and no parsing
+   */
+  public long getNotModified() {
+    return myNotModified.get();
+  }
+
+  public double getNotModifiedRatio() {
+    long calls = getCalls();
+    return calls == 0 ? 0 : (double) getNotModified() / calls;
+  }
+
+  public LatencyHistogram getLatency() {
+    return myLatency;
+  }
+
+  void reset() {
+    myLatency.reset();
+    myFailures.set(0);
+    myItems.set(0);
+    myBytes.set(0);
+    myNotModified.set(0);
+  }
+
+  @Override
+  public String toString() {
+    long calls = getCalls();
+    return String.format("%s: %d calls, %d failed, p50 %.1fms, p95 %.1fms, p99 %.1fms, max %.1fms, %d items%s",
+                         myName, calls, getFailures(),
+                         myLatency.getPercentileMillis(50), myLatency.getPercentileMillis(95), myLatency.getPercentileMillis(99),
+                         myLatency.getMaxMillis(), getItems(), getBytes() > 0 ? ", " + getBytes() + " bytes" : "")
+           + (getNotModified() > 0 ? String.format(", %.0f%% not modified", getNotModifiedRatio() * 100) : "");
+  }
+}
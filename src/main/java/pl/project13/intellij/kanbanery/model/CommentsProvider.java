@@ -0,0 +1,14 @@
+package pl.project13.intellij.kanbanery.model;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Supplies the comments of a task, which are not part of the task listing and have to be fetched separately.
+ *
+ * @author Konrad Malawski
+ */
+public interface CommentsProvider {
+
+  @NotNull
+  com.intellij.tasks.Comment[] commentsOf(@NotNull KanbaneryTask task);
+}
@@ -17,19 +17,29 @@
 package pl.project13.intellij.kanbanery.model;
 
 import com.google.common.base.Function;
+import com.google.common.base.Objects;
 import com.intellij.tasks.impl.SimpleComment;
 import com.intellij.util.text.DateFormatUtil;
+import org.jetbrains.annotations.Nullable;
+import pl.project13.intellij.kanbanery.cache.AvatarCache;
 import pl.project13.janbanery.resources.Comment;
 import pl.project13.janbanery.resources.User;
 
+import java.util.Map;
+
 /**
  * @author Konrad Malawski
  */
 public class KanbaneryComment extends SimpleComment {
 
+  private static final int AVATAR_SIZE = 40;
+
   private final Comment comment;
   private final User author;
 
+  // rendered lazily, racing threads render the same html so there's no need to lock
+  private volatile Rendered rendered;
+
   public KanbaneryComment(Comment comment, User author) {
     super(comment.getCreatedAt().toDate(), author.getFirstName() + " " + author.getLastName(), comment.getBody());
 
@@ -37,13 +47,45 @@ public class KanbaneryComment extends SimpleComment {
     this.author = author;
   }
 
+  /**
+   * Appends the html rendered by {@link #toHtml()}, which is only rendered once.
+   */
   @Override
   public void appendTo(StringBuilder builder) {
+    builder.append(toHtml());
+  }
+
+  /**
+   * Renders this comment the first time it's asked for, and again whenever the avatar url of its author changes:
+   * once an avatar being downloaded is there or failed to download, and once a failed one is tried again.
+   * Only an avatar on disk (or an author without one) is final. Checking for that only looks into the {@link AvatarCache}'s memory.
+   * Comments are immutable and cached along with their task, so this is cheap enough to call on the event dispatch thread
+   * once the comments were {@link pl.project13.intellij.kanbanery.sync.CommentCache loaded} (which renders them right away).
+   */
+  public String toHtml() {
+    Rendered previous = rendered;
+    String gravatarUrl = author.getGravatarUrl();
+    if (previous != null && (gravatarUrl == null || (previous.avatarUrl != null && previous.avatarUrl.startsWith("file:")))) {
+      return previous.html;
+    }
+
+    String avatarUrl = gravatarUrl == null ? null : AvatarCache.getInstance().urlOf(gravatarUrl, AVATAR_SIZE);
+    if (previous != null && Objects.equal(avatarUrl, previous.avatarUrl)) {
+      return previous.html;
+    }
+
+    Rendered current = new Rendered(render(avatarUrl), avatarUrl);
+    rendered = current;
+    return current.html;
+  }
+
+  private String render(@Nullable String avatarUrl) {
+    StringBuilder builder = new StringBuilder(256 + (getText() == null ? 0 : getText().length()));
     builder.append("<hr>");
     builder.append("<table>");
     builder.append("<tr><td>");
-    if (author.getGravatarUrl() != null) {
-      builder.append("<img src=\"").append(author.getGravatarUrl()).append("?s=40\"/><br>");
+    if (avatarUrl != null) {
+      builder.append("<img src=\"").append(avatarUrl).append("\"/><br>");
     }
     builder.append("</td><td>");
     if (getAuthor() != null) {
@@ -55,14 +97,30 @@ public class KanbaneryComment extends SimpleComment {
     builder.append("</td></tr></table>");
 
     builder.append(getText()).append("<br>");
+    return builder.toString();
   }
 
-  public static Function<Comment, KanbaneryComment> transformUsing() {
+  /**
+   * @param users known users by id, comments by unknown authors get {@link User.NoOne} as author
+   */
+  public static Function<Comment, KanbaneryComment> transformUsing(@Nullable final Map<Long, User> users) {
     return new Function<Comment, KanbaneryComment>() {
       @Override
       public KanbaneryComment apply(Comment input) {
-        return new KanbaneryComment(input, new User.NoOne()); // todo change this
+        User author = users == null || input.getAuthorId() == null ? null : users.get(input.getAuthorId());
+        return new KanbaneryComment(input, author == null ? new User.NoOne() : author);
       }
     };
   }
+
+  private static class Rendered {
+    final String html;
+    @Nullable
+    final String avatarUrl;
+
+    Rendered(String html, @Nullable String avatarUrl) {
+      this.html = html;
+      this.avatarUrl = avatarUrl;
+    }
+  }
 }
@@ -17,76 +17,208 @@
 package pl.project13.intellij.kanbanery.model;
 
 import com.google.common.base.Function;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.intellij.openapi.util.IconLoader;
 import com.intellij.tasks.Comment;
 import com.intellij.tasks.TaskState;
 import com.intellij.tasks.TaskType;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.joda.time.DateTime;
 import pl.project13.janbanery.resources.Task;
 
 import javax.swing.*;
+import java.nio.charset.Charset;
 import java.util.Date;
 import java.util.Map;
 
 /**
+ * Compact, immutable copy of a Janbanery {@link Task}, boards can easily contain tens of thousands of these.
+ * Only what the IDE needs is kept, everything that's displayed over and over again is computed once, and what is rarely
+ * read (title on its own, description) is kept in the smallest form it can be rebuilt from.
+ *
  * @author Konrad Malawski
  */
 public class KanbaneryTask extends com.intellij.tasks.Task {
 
-  private final Task task;
+  private static final Icon ICON = IconLoader.getIcon("/resources/kanbanery.png");
+
+  /**
+   * there are only a few task types (and boards), no need to keep a copy of their names in every task
+   */
+  private static final Interner<String> NAMES = Interners.newWeakInterner();
+
+  private static final long NO_TASK_TYPE = -1;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final int NO_TITLE = -1;
+
+  private final long id;
+  /**
+   * UTF-8, about half the size of the string for the mostly ASCII descriptions, decoded when the description is asked for
+   */
+  @Nullable
+  private final byte[] description;
+  private final long taskTypeId;
+  @Nullable
+  private final String taskTypeName;
+  private final TaskType type;
+  private final boolean readyToPull;
+  private final long createdAt;
+  private final long updatedAt;
+  @Nullable
+  private final String board;
+  private final boolean showBoard;
+  /**
+   * the title is not kept on its own, it's the part of the presentable name starting here ({@link #NO_TITLE} without a title)
+   */
+  private final int titleStart;
+  private final String presentableName;
+
+  @Nullable
+  private final CommentsProvider commentsProvider;
 
   public KanbaneryTask(@NotNull Task task, @Nullable pl.project13.janbanery.resources.TaskType taskType) {
-    this.task = task;
-    if (taskType != null) {
-      this.task.setTaskTypeName(taskType.getName());
+    this(task, taskType, null, null, false);
+  }
+
+  /**
+   * @param board     "workspace/project" the task was loaded from
+   * @param showBoard if the board should be part of the presentable name, because tasks of several boards are listed together
+   */
+  public KanbaneryTask(@NotNull Task task,
+                       @Nullable pl.project13.janbanery.resources.TaskType taskType,
+                       @Nullable CommentsProvider commentsProvider,
+                       @Nullable String board,
+                       boolean showBoard) {
+    String title = task.getTitle();
+    String description = task.getDescription();
+    String taskTypeName = taskType != null ? taskType.getName() : task.getTaskTypeName();
+
+    this.id = task.getId();
+    this.description = description == null ? null : description.getBytes(UTF_8);
+    this.taskTypeId = task.getTaskTypeId() == null ? NO_TASK_TYPE : task.getTaskTypeId();
+    this.taskTypeName = taskTypeName == null ? null : NAMES.intern(taskTypeName);
+    this.type = typeOf(task.getType() != null ? task.getType() : taskTypeName);
+    this.readyToPull = task.getReadyToPull() != null && task.getReadyToPull();
+    this.createdAt = millis(task.getCreatedAt());
+    this.updatedAt = millis(task.getUpdatedAt());
+    this.commentsProvider = commentsProvider;
+    this.board = board == null ? null : NAMES.intern(board);
+    this.showBoard = showBoard;
+
+    String prefix = "[#" + id + "] (" + this.taskTypeName + "): ";
+    this.titleStart = title == null ? NO_TITLE : prefix.length();
+    this.presentableName = prefix + title + (showBoard && board != null ? " @ " + board : "");
+  }
+
+  private KanbaneryTask(@NotNull KanbaneryTask task, boolean readyToPull) {
+    this.id = task.id;
+    this.description = task.description;
+    this.taskTypeId = task.taskTypeId;
+    this.taskTypeName = task.taskTypeName;
+    this.type = task.type;
+    this.readyToPull = readyToPull;
+    this.createdAt = task.createdAt;
+    this.updatedAt = task.updatedAt;
+    this.commentsProvider = task.commentsProvider;
+    this.board = task.board;
+    this.showBoard = task.showBoard;
+    this.titleStart = task.titleStart;
+    this.presentableName = task.presentableName;
+  }
+
+  /**
+   * @return a copy of this task with the given ready to pull state, everything else stays the same
+   */
+  @NotNull
+  public KanbaneryTask withReadyToPull(boolean readyToPull) {
+    if (readyToPull == this.readyToPull) {
+      return this;
     }
+    return new KanbaneryTask(this, readyToPull);
+  }
+
+  /**
+   * @return a Janbanery resource with the fields kept by this task, for example to write them to disk
+   */
+  @NotNull
+  public Task toResource() {
+    Task task = new Task();
+    task.setId(id);
+    task.setTitle(getTitle());
+    task.setDescription(getDescription());
+    task.setTaskTypeId(taskTypeId == NO_TASK_TYPE ? null : taskTypeId);
+    task.setTaskTypeName(taskTypeName);
+    task.setReadyToPull(readyToPull);
+    task.setCreatedAt(new DateTime(createdAt));
+    task.setUpdatedAt(new DateTime(updatedAt));
+    return task;
   }
 
   @NotNull
   @Override
   public String getId() {
-    return String.valueOf(task.getId());
+    return String.valueOf(id);
+  }
+
+  public long getTaskId() {
+    return id;
+  }
+
+  /**
+   * @return "workspace/project" this task belongs to, if known
+   */
+  @Nullable
+  public String getBoard() {
+    return board;
+  }
+
+  public String getTitle() {
+    if (titleStart == NO_TITLE) {
+      return null;
+    }
+    int titleEnd = presentableName.length() - (showBoard && board != null ? " @ ".length() + board.length() : 0);
+    return presentableName.substring(titleStart, titleEnd);
+  }
+
+  @Nullable
+  public String getTaskTypeName() {
+    return taskTypeName;
   }
 
   @NotNull
   @Override
   public String getDescription() {
-    return task.getDescription();
+    return description == null ? null : new String(description, UTF_8);
   }
 
   @NotNull
   @Override
   public com.intellij.tasks.Comment[] getComments() {
-    return Comment.EMPTY_ARRAY;
+    if (commentsProvider == null) {
+      return Comment.EMPTY_ARRAY;
+    }
+    return commentsProvider.commentsOf(this);
   }
 
   @NotNull
   @Override
   public Icon getIcon() {
-    return IconLoader.getIcon("/resources/kanbanery.png");
+    return ICON;
   }
 
   @NotNull
   @Override
   public TaskType getType() {
-    String type = task.getType();
-    if (type == null) {
-      return TaskType.OTHER;
-    } else if (type.equals("Bug")) {
-      return TaskType.BUG;
-    } else if (type.equals("Exception")) {
-      return TaskType.EXCEPTION;
-    } else if (type.equals("New Feature")) {
-      return TaskType.FEATURE;
-    } else {
-      return TaskType.OTHER;
-    }
+    return type;
   }
 
   @Override
   public TaskState getState() {
-    if (task.getReadyToPull()) {
+    if (readyToPull) {
       return TaskState.RESOLVED;
     } else {
       return TaskState.OPEN;
@@ -96,12 +228,19 @@ public class KanbaneryTask extends com.intellij.tasks.Task {
   @NotNull
   @Override
   public Date getUpdated() {
-    return task.getUpdatedAt().toDate();
+    return new Date(updatedAt);
+  }
+
+  /**
+   * @return {@link #getUpdated()} in millis, without creating a date
+   */
+  public long getUpdatedAt() {
+    return updatedAt;
   }
 
   @Override
   public Date getCreated() {
-    return task.getCreatedAt().toDate();
+    return new Date(createdAt);
   }
 
   @Override
@@ -116,7 +255,7 @@ public class KanbaneryTask extends com.intellij.tasks.Task {
 
   @Override
   public String getIssueUrl() {
-    return String.format("https://kanbanery.com/tasks/%d/in-context", task.getId());
+    return "https://kanbanery.com/tasks/" + id + "/in-context";
   }
 
   @Override
@@ -139,7 +278,25 @@ public class KanbaneryTask extends com.intellij.tasks.Task {
    */
   @Override
   public String getPresentableName() {
-    return String.format("[#%d] (%s): %s", task.getId(), task.getTaskTypeName(), task.getTitle());
+    return presentableName;
+  }
+
+  private static TaskType typeOf(@Nullable String type) {
+    if (type == null) {
+      return TaskType.OTHER;
+    } else if (type.equals("Bug")) {
+      return TaskType.BUG;
+    } else if (type.equals("Exception")) {
+      return TaskType.EXCEPTION;
+    } else if (type.equals("New Feature")) {
+      return TaskType.FEATURE;
+    } else {
+      return TaskType.OTHER;
+    }
+  }
+
+  private static long millis(@Nullable DateTime dateTime) {
+    return dateTime == null ? 0 : dateTime.getMillis();
   }
 
   public static Function<Task, KanbaneryTask> transform(final Map<Long, pl.project13.janbanery.resources.TaskType> taskTypes) {
@@ -0,0 +1,151 @@
+package pl.project13.intellij.kanbanery.search;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import pl.project13.intellij.kanbanery.model.KanbaneryTask;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static com.google.common.collect.Maps.newConcurrentMap;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Sets.newSetFromMap;
+
+/**
+ * Token and prefix index over task id, title, type name and description.
+ * Updated incrementally by {@link pl.project13.intellij.kanbanery.sync.TaskStore} whenever a task changes.
+ *
+ * @author Konrad Malawski
+ */
+public class TaskIndex {
+
+  /**
+   * token -> ids of the tasks containing it, sorted so that prefix lookups are a sub map
+   */
+  private final ConcurrentNavigableMap<String, Set<Long>> myPostings = new ConcurrentSkipListMap<String, Set<Long>>();
+
+  /**
+   * id -> tokens it was indexed with, so an update can remove the stale postings
+   */
+  private final ConcurrentMap<Long, Set<String>> myTokensById = newConcurrentMap();
+
+  public void update(long id, @NotNull KanbaneryTask task) {
+    remove(id);
+
+    Set<String> tokens = new HashSet<String>();
+    tokenize(task.getId(), tokens);
+    tokenize(task.getTitle(), tokens);
+    tokenize(task.getTaskTypeName(), tokens);
+    tokenize(task.getDescription(), tokens);
+
+    for (String token : tokens) {
+      Set<Long> ids = myPostings.get(token);
+      if (ids == null) {
+        Set<Long> created = newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        ids = myPostings.putIfAbsent(token, created);
+        if (ids == null) {
+          ids = created;
+        }
+      }
+      ids.add(id);
+    }
+    myTokensById.put(id, tokens);
+  }
+
+  public void remove(long id) {
+    Set<String> tokens = myTokensById.remove(id);
+    if (tokens == null) {
+      return;
+    }
+
+    for (String token : tokens) {
+      Set<Long> ids = myPostings.get(token);
+      if (ids != null) {
+        ids.remove(id);
+        if (ids.isEmpty()) {
+          myPostings.remove(token, ids);
+        }
+      }
+    }
+  }
+
+  public void clear() {
+    myPostings.clear();
+    myTokensById.clear();
+  }
+
+  /**
+   * Scores every task matching all tokens of the query. Query tokens match as prefixes
+   * (the user is most likely still typing), exact token matches score higher.
+   *
+   * @return id -> score, higher is better; {@code null} if the query contains no tokens at all
+   */
+  @Nullable
+  public Map<Long, Integer> match(@Nullable String query) {
+    List<String> queryTokens = new ArrayList<String>();
+    tokenize(query, queryTokens);
+    if (queryTokens.isEmpty()) {
+      return null;
+    }
+
+    Map<Long, Integer> scores = null;
+    for (String queryToken : queryTokens) {
+      Map<Long, Integer> tokenScores = newHashMap();
+
+      for (Map.Entry<String, Set<Long>> posting : prefixedBy(queryToken).entrySet()) {
+        int score = posting.getKey().length() == queryToken.length() ? 2 : 1;
+        for (Long id : posting.getValue()) {
+          Integer known = tokenScores.get(id);
+          if (known == null || known < score) {
+            tokenScores.put(id, score);
+          }
+        }
+      }
+
+      if (scores == null) {
+        scores = tokenScores;
+      } else {
+        // every query token has to match
+        for (Iterator<Map.Entry<Long, Integer>> it = scores.entrySet().iterator(); it.hasNext(); ) {
+          Map.Entry<Long, Integer> entry = it.next();
+          Integer tokenScore = tokenScores.get(entry.getKey());
+          if (tokenScore == null) {
+            it.remove();
+          } else {
+            entry.setValue(entry.getValue() + tokenScore);
+          }
+        }
+      }
+
+      if (scores.isEmpty()) {
+        break;
+      }
+    }
+    return scores;
+  }
+
+  private SortedMap<String, Set<Long>> prefixedBy(String prefix) {
+    return myPostings.subMap(prefix, prefix + Character.MAX_VALUE);
+  }
+
+  static void tokenize(@Nullable String text, Collection<String> tokens) {
+    if (text == null) {
+      return;
+    }
+
+    int start = -1;
+    int length = text.length();
+    for (int i = 0; i <= length; i++) {
+      boolean isTokenChar = i < length && Character.isLetterOrDigit(text.charAt(i));
+      if (isTokenChar && start < 0) {
+        start = i;
+      } else if (!isTokenChar && start >= 0) {
+        tokens.add(text.substring(start, i).toLowerCase());
+        start = -1;
+      }
+    }
+  }
+}
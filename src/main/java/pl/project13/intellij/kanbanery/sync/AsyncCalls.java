@@ -0,0 +1,70 @@
+package pl.project13.intellij.kanbanery.sync;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.*;
+
+/**
+ * The pool the asynchronous repository api runs on, separate from the IDE's pooled threads so that waiting for
+ * Kanbanery never takes one of those away. Every call can be cancelled (interrupting it) and can be given a deadline,
+ * after which it is cancelled by itself.
+ *
+ * @author Konrad Malawski
+ */
+public final class AsyncCalls {
+
+  private static final int THREADS = 8;
+
+  private static final ListeningExecutorService ourExecutor =
+    MoreExecutors.listeningDecorator(BackgroundExecutor.newBoundedPool("Kanbanery async", THREADS));
+
+  private AsyncCalls() {
+  }
+
+  /**
+   * @param timeout how long the call may take, it's cancelled afterwards; 0 for no deadline
+   */
+  @NotNull
+  public static <T> ListenableFuture<T> submit(@NotNull Callable<T> call, long timeout, @NotNull TimeUnit unit) {
+    final ListenableFuture<T> future = ourExecutor.submit(call);
+    if (timeout > 0) {
+      final ScheduledFuture<?> deadline = BackgroundExecutor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          future.cancel(true);
+        }
+      }, timeout, unit);
+
+      future.addListener(new Runnable() {
+        @Override
+        public void run() {
+          deadline.cancel(false);
+        }
+      }, MoreExecutors.sameThreadExecutor());
+    }
+    return future;
+  }
+
+  /**
+   * Waits for the result, but no longer than the timeout. The call itself is not cancelled when the timeout passes,
+   * as it may be shared with other callers (and its result is still worth having afterwards).
+   *
+   * @throws TimeoutException      if the timeout passed
+   * @throws CancellationException if the call was cancelled, e.g. because its deadline passed
+   * @throws Exception             whatever the call failed with
+   */
+  public static <T> T await(@NotNull Future<T> future, long timeout, @NotNull TimeUnit unit) throws Exception {
+    try {
+      return future.get(timeout, unit);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package pl.project13.intellij.kanbanery.sync;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The daemon threads all background syncing, refreshing and writing of the plugin runs on.
+ * <p/>
+ * A single timer thread only keeps time: whatever is scheduled here is handed over to a bounded pool of workers
+ * once it's due, so a sync or a write stuck on the network never delays anything else that is due meanwhile.
+ * <p/>
+ * Every pool of the plugin is made here, one per layer, and a thread only ever waits for work of a layer further down
+ * this list, never for its own layer or one above. So however full a layer is, the ones below it keep going:
+ * <ol>
+ * <li>{@link AsyncCalls}, "Kanbanery async" (8): the asynchronous repository api</li>
+ * <li>{@link SingleFlight}, "Kanbanery flights" (8): task lookups and searches shared by concurrent callers</li>
+ * <li>the workers, "Kanbanery background" (4): scheduled syncs, writing task states, closing sessions</li>
+ * <li>"Kanbanery boards" (4): syncing the additional boards of a session</li>
+ * <li>{@link CommentCache}, "Kanbanery comments" (3)</li>
+ * <li>{@link MetadataCache}, "Kanbanery metadata" (2): task types, users and columns</li>
+ * <li>"Kanbanery calls" (32): every call to Kanbanery that has a timeout, these wait for nothing. There are more of them
+ * than threads in the layers above that may wait for a call, so a call never queues and its timeout is all Kanbanery's</li>
+ * </ol>
+ * The avatar downloads ("Kanbanery avatars") and the commit index thread neither wait for others nor are waited for.
+ *
+ * @author Konrad Malawski
+ */
+public final class BackgroundExecutor {
+
+  private static final int WORKERS = 4;
+
+  private static final ScheduledExecutorService ourTimer = Executors.newSingleThreadScheduledExecutor(daemonThreads("Kanbanery timer"));
+
+  private static final ExecutorService ourWorkers = newBoundedPool("Kanbanery background", WORKERS);
+
+  private BackgroundExecutor() {
+  }
+
+  /**
+   * Runs the work on one of the workers as soon as one is free.
+   */
+  public static void execute(@NotNull Runnable work) {
+    ourWorkers.execute(work);
+  }
+
+  /**
+   * Runs the work on one of the workers once the delay passed. Cancelling the returned future only helps
+   * while the work is not due yet.
+   */
+  @NotNull
+  public static ScheduledFuture<?> schedule(@NotNull final Runnable work, long delay, @NotNull TimeUnit unit) {
+    return ourTimer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        ourWorkers.execute(work);
+      }
+    }, delay, unit);
+  }
+
+  /**
+   * Runs the work on one of the workers every {@code delay}, skipping a run while the previous one is still going.
+   */
+  @NotNull
+  public static ScheduledFuture<?> scheduleWithFixedDelay(@NotNull final Runnable work, long initialDelay, long delay,
+                                                          @NotNull TimeUnit unit) {
+    final AtomicBoolean running = new AtomicBoolean();
+    final Runnable once = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          work.run();
+        } finally {
+          running.set(false);
+        }
+      }
+    };
+
+    return ourTimer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        if (running.compareAndSet(false, true)) {
+          try {
+            ourWorkers.execute(once);
+          } catch (RuntimeException e) {
+            running.set(false);
+            throw e;
+          }
+        }
+      }
+    }, initialDelay, delay, unit);
+  }
+
+  /**
+   * @return a separate pool of at most {@code threads} daemon threads, for work whose concurrency has to be limited
+   */
+  @NotNull
+  public static ExecutorService newBoundedPool(@NotNull String name, int threads) {
+    return Executors.newFixedThreadPool(threads, daemonThreads(name));
+  }
+
+  /**
+   * @return a single daemon thread of the lowest priority, for housekeeping that must never compete with the IDE
+   */
+  @NotNull
+  public static ScheduledExecutorService newLowPriorityThread(@NotNull String name) {
+    return Executors.newSingleThreadScheduledExecutor(daemonThreads(name, Thread.MIN_PRIORITY));
+  }
+
+  private static ThreadFactory daemonThreads(String name) {
+    return daemonThreads(name, Thread.NORM_PRIORITY);
+  }
+
+  private static ThreadFactory daemonThreads(final String name, final int priority) {
+    return new ThreadFactory() {
+      private final AtomicInteger myCount = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, name + " " + myCount.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setPriority(priority);
+        return thread;
+      }
+    };
+  }
+}
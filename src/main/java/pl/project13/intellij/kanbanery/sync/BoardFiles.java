@@ -0,0 +1,35 @@
+package pl.project13.intellij.kanbanery.sync;
+
+import com.intellij.openapi.application.PathManager;
+import org.jetbrains.annotations.NotNull;
+import pl.project13.intellij.kanbanery.cache.Digests;
+
+import java.io.File;
+
+/**
+ * Where the per board files (snapshot, pending changes...) are kept, all of them live in the IDE system directory.
+ * The same board seen through another account (or another Kanbanery server) gets files of its own, the account goes into
+ * the file name as a SHA-1 of a fingerprint without the password, like in the {@link pl.project13.intellij.kanbanery.cache.ProjectCatalog}.
+ *
+ * @author Konrad Malawski
+ */
+public final class BoardFiles {
+
+  private BoardFiles() {
+  }
+
+  /**
+   * @param account the fingerprint of the account and api url the board is read with, which must not contain the password
+   */
+  @NotNull
+  public static File fileFor(@NotNull String account, @NotNull String workspaceName, @NotNull String projectName,
+                             @NotNull String extension) {
+    File dir = new File(PathManager.getSystemPath(), "kanbanery");
+    String name = sanitize(workspaceName) + "_" + sanitize(projectName) + "_" + Digests.sha1(account);
+    return new File(dir, name + "." + extension);
+  }
+
+  private static String sanitize(String name) {
+    return name.replaceAll("[^A-Za-z0-9._-]", "_");
+  }
+}
@@ -0,0 +1,132 @@
+package pl.project13.intellij.kanbanery.sync;
+
+import com.google.common.collect.ImmutableMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import pl.project13.janbanery.resources.Column;
+import pl.project13.janbanery.resources.TaskType;
+import pl.project13.janbanery.resources.User;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.google.common.base.Objects.equal;
+
+/**
+ * Immutable snapshot of everything tasks refer to by id: task types, users and columns of a board.
+ * A new instance is published as a whole, so readers never see a half updated (or empty while loading) map.
+ *
+ * @author Konrad Malawski
+ */
+public final class BoardMetadata {
+
+  public static final BoardMetadata EMPTY = new BoardMetadata(Collections.<TaskType>emptyList(),
+                                                              Collections.<User>emptyList(),
+                                                              Collections.<Column>emptyList(),
+                                                              0);
+
+  private final ImmutableMap<Long, TaskType> myTaskTypes;
+  private final ImmutableMap<Long, User> myUsers;
+  private final ImmutableMap<Long, Column> myColumns;
+
+  private final long myVersion;
+
+  public BoardMetadata(@NotNull Collection<TaskType> taskTypes,
+                       @NotNull Collection<User> users,
+                       @NotNull Collection<Column> columns,
+                       long version) {
+    Map<Long, TaskType> sortedTaskTypes = new TreeMap<Long, TaskType>();
+    for (TaskType taskType : taskTypes) {
+      sortedTaskTypes.put(taskType.getId(), taskType);
+    }
+    Map<Long, User> sortedUsers = new TreeMap<Long, User>();
+    for (User user : users) {
+      sortedUsers.put(user.getId(), user);
+    }
+    Map<Long, Column> sortedColumns = new TreeMap<Long, Column>();
+    for (Column column : columns) {
+      sortedColumns.put(column.getId(), column);
+    }
+
+    myTaskTypes = ImmutableMap.copyOf(sortedTaskTypes);
+    myUsers = ImmutableMap.copyOf(sortedUsers);
+    myColumns = ImmutableMap.copyOf(sortedColumns);
+    myVersion = version;
+  }
+
+  /**
+   * @return the same content, published as the given version
+   */
+  @NotNull
+  public BoardMetadata withVersion(long version) {
+    return new BoardMetadata(myTaskTypes.values(), myUsers.values(), myColumns.values(), version);
+  }
+
+  @NotNull
+  public Map<Long, TaskType> getTaskTypes() {
+    return myTaskTypes;
+  }
+
+  @Nullable
+  public TaskType getTaskType(@Nullable Long id) {
+    return id == null ? null : myTaskTypes.get(id);
+  }
+
+  @NotNull
+  public Map<Long, User> getUsers() {
+    return myUsers;
+  }
+
+  @Nullable
+  public User getUser(@Nullable Long id) {
+    return id == null ? null : myUsers.get(id);
+  }
+
+  @NotNull
+  public Map<Long, Column> getColumns() {
+    return myColumns;
+  }
+
+  /**
+   * @return incremented every time different metadata was published, 0 means nothing was loaded yet
+   */
+  public long getVersion() {
+    return myVersion;
+  }
+
+  /**
+   * @return true if both contain the same task types, users and columns (the version is not compared)
+   */
+  public boolean sameContentAs(@NotNull BoardMetadata other) {
+    if (!myTaskTypes.keySet().equals(other.myTaskTypes.keySet())
+        || !myUsers.keySet().equals(other.myUsers.keySet())
+        || !myColumns.keySet().equals(other.myColumns.keySet())) {
+      return false;
+    }
+
+    for (TaskType taskType : myTaskTypes.values()) {
+      TaskType otherTaskType = other.myTaskTypes.get(taskType.getId());
+      if (!equal(taskType.getName(), otherTaskType.getName())) {
+        return false;
+      }
+    }
+    for (User user : myUsers.values()) {
+      User otherUser = other.myUsers.get(user.getId());
+      if (!equal(user.getFirstName(), otherUser.getFirstName())
+          || !equal(user.getLastName(), otherUser.getLastName())
+          || !equal(user.getEmail(), otherUser.getEmail())
+          || !equal(user.getGravatarUrl(), otherUser.getGravatarUrl())) {
+        return false;
+      }
+    }
+    for (Column column : myColumns.values()) {
+      Column otherColumn = other.myColumns.get(column.getId());
+      if (!equal(column.getName(), otherColumn.getName())) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,180 @@
+package pl.project13.intellij.kanbanery.sync;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.joda.time.DateTime;
+import pl.project13.intellij.kanbanery.cache.ChecksummedFile;
+import pl.project13.janbanery.resources.Task;
+import pl.project13.janbanery.resources.TaskType;
+import pl.project13.janbanery.resources.User;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The last synced state of a board (tasks, task types and users), stored in a small binary file
+ * so that the task list is available right after the IDE starts, before we even log in.
+ * <p/>
+ * Stored as a {@link ChecksummedFile}: a file with an unknown version or a broken checksum is deleted and treated as missing.
+ *
+ * @author Konrad Malawski
+ */
+public class BoardSnapshot {
+
+  private static final int MAGIC = 0x4b414e42; // "KANB"
+  private static final int SCHEMA_VERSION = 1;
+
+  /**
+   * of the {@link BoardFiles} snapshots are kept in, one per account and workspace/project
+   */
+  public static final String EXTENSION = "snapshot";
+
+  /**
+   * guards against allocating huge arrays when reading a corrupted length
+   */
+  private static final int MAX_STRING_BYTES = 16 * 1024 * 1024;
+
+  private final List<Task> myTasks;
+  private final List<TaskType> myTaskTypes;
+  private final List<User> myUsers;
+
+  public BoardSnapshot(@NotNull List<Task> tasks, @NotNull List<TaskType> taskTypes, @NotNull List<User> users) {
+    myTasks = tasks;
+    myTaskTypes = taskTypes;
+    myUsers = users;
+  }
+
+  @NotNull
+  public List<Task> getTasks() {
+    return myTasks;
+  }
+
+  @NotNull
+  public List<TaskType> getTaskTypes() {
+    return myTaskTypes;
+  }
+
+  @NotNull
+  public List<User> getUsers() {
+    return myUsers;
+  }
+
+  /**
+   * Writes the snapshot to a temporary file first and then renames it, so a crash never leaves a half written file behind.
+   */
+  public void writeTo(@NotNull File file) throws IOException {
+    ChecksummedFile.write(file, MAGIC, SCHEMA_VERSION, new ChecksummedFile.Writer() {
+      @Override
+      public void write(@NotNull DataOutputStream out) throws IOException {
+        out.writeInt(myTaskTypes.size());
+        for (TaskType taskType : myTaskTypes) {
+          out.writeLong(taskType.getId());
+          writeString(out, taskType.getName());
+        }
+
+        out.writeInt(myUsers.size());
+        for (User user : myUsers) {
+          out.writeLong(user.getId());
+          writeString(out, user.getFirstName());
+          writeString(out, user.getLastName());
+          writeString(out, user.getEmail());
+          writeString(out, user.getGravatarUrl());
+        }
+
+        out.writeInt(myTasks.size());
+        for (Task task : myTasks) {
+          out.writeLong(task.getId());
+          writeString(out, task.getTitle());
+          writeString(out, task.getDescription());
+          out.writeLong(task.getTaskTypeId() == null ? -1 : task.getTaskTypeId());
+          writeString(out, task.getTaskTypeName());
+          out.writeBoolean(task.getReadyToPull() != null && task.getReadyToPull());
+          out.writeLong(millis(task.getCreatedAt()));
+          out.writeLong(millis(task.getUpdatedAt()));
+        }
+      }
+    });
+  }
+
+  /**
+   * Streams the snapshot back from disk.
+   *
+   * @return the snapshot, or null if there is none or it's unusable (in which case a full sync is needed)
+   */
+  @Nullable
+  public static BoardSnapshot readFrom(@NotNull File file) {
+    return ChecksummedFile.read(file, MAGIC, SCHEMA_VERSION, new ChecksummedFile.Reader<BoardSnapshot>() {
+      @NotNull
+      @Override
+      public BoardSnapshot read(@NotNull DataInputStream in) throws IOException {
+        int taskTypeCount = in.readInt();
+        List<TaskType> taskTypes = new ArrayList<TaskType>(Math.min(taskTypeCount, 1024));
+        for (int i = 0; i < taskTypeCount; i++) {
+          TaskType taskType = new TaskType();
+          taskType.setId(in.readLong());
+          taskType.setName(readString(in));
+          taskTypes.add(taskType);
+        }
+
+        int userCount = in.readInt();
+        List<User> users = new ArrayList<User>(Math.min(userCount, 1024));
+        for (int i = 0; i < userCount; i++) {
+          User user = new User();
+          user.setId(in.readLong());
+          user.setFirstName(readString(in));
+          user.setLastName(readString(in));
+          user.setEmail(readString(in));
+          user.setGravatarUrl(readString(in));
+          users.add(user);
+        }
+
+        int taskCount = in.readInt();
+        List<Task> tasks = new ArrayList<Task>(Math.min(taskCount, 1024));
+        for (int i = 0; i < taskCount; i++) {
+          Task task = new Task();
+          task.setId(in.readLong());
+          task.setTitle(readString(in));
+          task.setDescription(readString(in));
+          long taskTypeId = in.readLong();
+          task.setTaskTypeId(taskTypeId < 0 ? null : taskTypeId);
+          task.setTaskTypeName(readString(in));
+          task.setReadyToPull(in.readBoolean());
+          task.setCreatedAt(new DateTime(in.readLong()));
+          task.setUpdatedAt(new DateTime(in.readLong()));
+          tasks.add(task);
+        }
+
+        return new BoardSnapshot(tasks, taskTypes, users);
+      }
+    });
+  }
+
+  private static void writeString(DataOutputStream out, @Nullable String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = value.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  @Nullable
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    if (length > MAX_STRING_BYTES) {
+      throw new IOException("Corrupted string length " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private static long millis(@Nullable DateTime dateTime) {
+    return dateTime == null ? 0 : dateTime.getMillis();
+  }
+}
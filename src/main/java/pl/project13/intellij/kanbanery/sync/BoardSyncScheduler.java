@@ -0,0 +1,184 @@
+package pl.project13.intellij.kanbanery.sync;
+
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the local copy of one board fresh by syncing it in the background.
+ * <p/>
+ * Polls every {@code interval} while the IDE is active and the board keeps changing,
+ * doubles the delay (up to {@code maxBackoff}) while nothing changes or syncing fails,
+ * and waits the full {@code maxBackoff} while the IDE is in the background. Every delay gets some jitter
+ * so that many repositories don't hit Kanbanery at the same moment. Polling stops by itself if nobody
+ * asked for the tasks for a long time, and resumes on the next {@link #touch()}.
+ *
+ * @author Konrad Malawski
+ */
+public class BoardSyncScheduler {
+
+  private final static Logger LOG = Logger.getInstance("#pl.project13.intellij.kanbanery.sync.BoardSyncScheduler");
+
+  private static final long STOP_WHEN_UNUSED_FOR_MILLIS = TimeUnit.MINUTES.toMillis(30);
+  private static final double JITTER = 0.2;
+
+  /**
+   * The actual sync, run on a background thread.
+   */
+  public interface Sync {
+    /**
+     * @return true if anything changed on the board since the previous sync
+     */
+    boolean sync() throws Exception;
+  }
+
+  private final String myName;
+  private final Sync mySync;
+  private final Random myRandom = new Random();
+
+  private volatile long myIntervalMillis = TimeUnit.SECONDS.toMillis(30);
+  private volatile long myMaxBackoffMillis = TimeUnit.MINUTES.toMillis(10);
+
+  private volatile long myCurrentDelayMillis;
+  private volatile long myLastSyncTime;
+  private volatile long myLastTouchTime;
+  private volatile int myConsecutiveFailures;
+
+  private ScheduledFuture<?> myScheduled;
+
+  /**
+   * bumped whenever the schedule is reset, so that a sync that was already running doesn't schedule a second chain
+   */
+  private int myGeneration;
+
+  public BoardSyncScheduler(@NotNull String name, @NotNull Sync sync) {
+    myName = name;
+    mySync = sync;
+  }
+
+  /**
+   * Marks the board as being in use, starting the polling if it isn't running. The first sync is due right away,
+   * or an interval after the last one if that was {@link #synced() recent}.
+   */
+  public synchronized void touch() {
+    myLastTouchTime = System.currentTimeMillis();
+
+    if (myScheduled == null) {
+      myCurrentDelayMillis = myIntervalMillis;
+      long age = getLastSyncAgeMillis();
+      schedule(age < 0 ? 0 : Math.max(0, myIntervalMillis - age));
+    }
+  }
+
+  /**
+   * Records a sync that was done without the scheduler, e.g. while the user was waiting for the tasks.
+   */
+  public void synced() {
+    myLastSyncTime = System.currentTimeMillis();
+  }
+
+  /**
+   * Runs a sync as soon as possible and resets the delay, for example after the user switched tasks.
+   */
+  public synchronized void syncNow() {
+    myLastTouchTime = System.currentTimeMillis();
+    myCurrentDelayMillis = myIntervalMillis;
+
+    stop();
+    schedule(0);
+  }
+
+  public synchronized void stop() {
+    myGeneration++;
+    if (myScheduled != null) {
+      myScheduled.cancel(false);
+      myScheduled = null;
+    }
+  }
+
+  private synchronized void schedule(long delayMillis) {
+    final int generation = myGeneration;
+    myScheduled = BackgroundExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        runSync(generation);
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void runSync(int generation) {
+    long delay;
+    try {
+      boolean changed = mySync.sync();
+      myLastSyncTime = System.currentTimeMillis();
+      myConsecutiveFailures = 0;
+
+      if (changed) {
+        delay = myIntervalMillis;
+      } else {
+        delay = Math.min(myCurrentDelayMillis * 2, myMaxBackoffMillis);
+      }
+    } catch (Exception e) {
+      myConsecutiveFailures++;
+      delay = Math.min(myIntervalMillis << Math.min(myConsecutiveFailures, 16), myMaxBackoffMillis);
+      LOG.info("Syncing " + myName + " failed (" + myConsecutiveFailures + " in a row), retrying in " + delay + "ms: " + e.getMessage());
+    }
+
+    if (!isIdeActive()) {
+      delay = myMaxBackoffMillis;
+    }
+
+    synchronized (this) {
+      if (generation != myGeneration) {
+        return; // stopped meanwhile, or syncNow() already scheduled the next run
+      }
+
+      if (System.currentTimeMillis() - myLastTouchTime > STOP_WHEN_UNUSED_FOR_MILLIS) {
+        LOG.info("Nobody used " + myName + " for a while, pausing background sync");
+        myScheduled = null;
+        return;
+      }
+
+      myCurrentDelayMillis = delay;
+      schedule(withJitter(delay));
+    }
+  }
+
+  private long withJitter(long delay) {
+    double factor = 1 - JITTER + myRandom.nextDouble() * 2 * JITTER;
+    return (long) (delay * factor);
+  }
+
+  private static boolean isIdeActive() {
+    Application application = ApplicationManager.getApplication();
+    return application == null || application.isActive();
+  }
+
+  public void setIntervalMillis(long intervalMillis) {
+    myIntervalMillis = Math.max(intervalMillis, 1000);
+  }
+
+  public void setMaxBackoffMillis(long maxBackoffMillis) {
+    myMaxBackoffMillis = Math.max(maxBackoffMillis, myIntervalMillis);
+  }
+
+  /**
+   * @return the delay (without jitter) before the next sync
+   */
+  public long getCurrentDelayMillis() {
+    return myCurrentDelayMillis;
+  }
+
+  /**
+   * @return how old the local copy of the board is, or -1 if it was never synced
+   */
+  public long getLastSyncAgeMillis() {
+    long lastSync = myLastSyncTime;
+    return lastSync == 0 ? -1 : System.currentTimeMillis() - lastSync;
+  }
+}
@@ -0,0 +1,131 @@
+package pl.project13.intellij.kanbanery.sync;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops talking to Kanbanery after {@link #FAILURE_THRESHOLD} failures in a row, so an outage costs one timeout instead of
+ * one per call. Once open, a single trial call is let through after a cool down (which doubles with every failed trial);
+ * its success closes the circuit again.
+ *
+ * @author Konrad Malawski
+ */
+public class CircuitBreaker {
+
+  private final static Logger LOG = Logger.getInstance("#pl.project13.intellij.kanbanery.sync.CircuitBreaker");
+
+  private static final int FAILURE_THRESHOLD = 3;
+  private static final long MIN_OPEN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  private static final long MAX_OPEN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  /**
+   * Told about an outage starting and ending, once each.
+   */
+  public interface Listener {
+    void opened(@Nullable Throwable cause);
+
+    void closed();
+  }
+
+  private final String myName;
+  private final Listener myListener;
+
+  private State myState = State.CLOSED;
+  private int myFailures;
+  private long myOpenMillis = MIN_OPEN_MILLIS;
+  private long myRetryAt;
+
+  public CircuitBreaker(@NotNull String name, @NotNull Listener listener) {
+    myName = name;
+    myListener = listener;
+  }
+
+  /**
+   * @return true if a call may be made now; when the cool down is over, true for exactly one trial call
+   */
+  public synchronized boolean allowRequest() {
+    switch (myState) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (System.currentTimeMillis() >= myRetryAt) {
+          LOG.info("Trying " + myName + " again");
+          myState = State.HALF_OPEN;
+          return true;
+        }
+        return false;
+      default:
+        // a trial call is in flight already
+        return false;
+    }
+  }
+
+  public void onSuccess() {
+    boolean recovered;
+    synchronized (this) {
+      recovered = myState != State.CLOSED;
+      myState = State.CLOSED;
+      myFailures = 0;
+      myOpenMillis = MIN_OPEN_MILLIS;
+    }
+
+    if (recovered) {
+      LOG.info(myName + " is reachable again");
+      myListener.closed();
+    }
+  }
+
+  public void onFailure(@Nullable Throwable cause) {
+    boolean opened = false;
+    synchronized (this) {
+      myFailures++;
+      if (myState == State.HALF_OPEN) {
+        myOpenMillis = Math.min(MAX_OPEN_MILLIS, myOpenMillis * 2);
+        myState = State.OPEN;
+        myRetryAt = System.currentTimeMillis() + myOpenMillis;
+      } else if (myState == State.CLOSED && myFailures >= FAILURE_THRESHOLD) {
+        myState = State.OPEN;
+        myRetryAt = System.currentTimeMillis() + myOpenMillis;
+        opened = true;
+      }
+    }
+
+    if (opened) {
+      LOG.info(myName + " failed " + FAILURE_THRESHOLD + " times in a row, not calling it for a while");
+      myListener.opened(cause);
+    }
+  }
+
+  /**
+   * For a call that ended without telling whether the service is reachable, e.g. it was cancelled or rejected.
+   * Counts neither way, only a trial call it was gets handed on to the next call.
+   */
+  public synchronized void onInconclusive() {
+    if (myState == State.HALF_OPEN) {
+      myState = State.OPEN; // the cool down is over already, so the next allowRequest() is the trial
+    }
+  }
+
+  @NotNull
+  public synchronized State getState() {
+    return myState;
+  }
+
+  public synchronized boolean isClosed() {
+    return myState == State.CLOSED;
+  }
+
+  /**
+   * @return true if the next {@link #allowRequest()} would let a trial call through
+   */
+  public synchronized boolean isTrialDue() {
+    return myState == State.OPEN && System.currentTimeMillis() >= myRetryAt;
+  }
+}
@@ -0,0 +1,15 @@
+package pl.project13.intellij.kanbanery.sync;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of calling Kanbanery while the {@link CircuitBreaker} is open.
+ *
+ * @author Konrad Malawski
+ */
+public class CircuitOpenException extends IOException {
+
+  public CircuitOpenException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,173 @@
+package pl.project13.intellij.kanbanery.sync;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import pl.project13.intellij.kanbanery.cache.ExpiringLruCache;
+import pl.project13.intellij.kanbanery.model.CommentsProvider;
+import pl.project13.intellij.kanbanery.model.KanbaneryComment;
+import pl.project13.intellij.kanbanery.model.KanbaneryTask;
+import pl.project13.janbanery.resources.Comment;
+
+import java.util.List;
+import java.util.concurrent.*;
+
+import static com.google.common.collect.Maps.newConcurrentMap;
+
+/**
+ * Loads the comments of a task the first time they are needed and keeps them for as long as the task
+ * does not change (same {@code updatedAt}), so reopening a task never fetches its comments again.
+ * Comments are rendered to html right after loading, still in the background, so paging through tasks in the task info
+ * only appends ready made html. The threads of the {@link #MAX_CACHED_TASKS} most recently viewed tasks are kept.
+ * <p/>
+ * Nothing is fetched before the details of a task are shown. At most {@link #MAX_CONCURRENT_FETCHES} tasks are fetched
+ * at a time, and concurrent requests for the same task share one fetch.
+ *
+ * @author Konrad Malawski
+ */
+public class CommentCache implements CommentsProvider {
+
+  private final static Logger LOG = Logger.getInstance("#pl.project13.intellij.kanbanery.sync.CommentCache");
+
+  private static final int MAX_CONCURRENT_FETCHES = 3;
+
+  private static final ExecutorService ourFetchers = BackgroundExecutor.newBoundedPool("Kanbanery comments", MAX_CONCURRENT_FETCHES);
+  private static final long WAIT_FOR_COMMENTS_SECONDS = 10;
+
+  private static final int MAX_CACHED_TASKS = 500;
+
+  private static final Future<CachedComments> NOTHING_TO_LOAD =
+    Futures.immediateFuture(new CachedComments(0, com.intellij.tasks.Comment.EMPTY_ARRAY));
+
+  /**
+   * Fetches the comments of one task from Kanbanery, called on a background thread.
+   */
+  public interface Fetcher {
+    @NotNull
+    List<Comment> fetch(long taskId) throws Exception;
+  }
+
+  private final Fetcher myFetcher;
+
+  private final ExpiringLruCache<Long, CachedComments> myComments = new ExpiringLruCache<Long, CachedComments>(MAX_CACHED_TASKS, Long.MAX_VALUE);
+  private final ConcurrentMap<Long, FutureTask<CachedComments>> myInFlight = newConcurrentMap();
+
+  private final MetadataCache myMetadata;
+
+  private volatile boolean myClosed;
+
+  /**
+   * @param metadata used to resolve comment authors, comments loaded before the users are known keep a placeholder author
+   */
+  public CommentCache(@NotNull Fetcher fetcher, @NotNull MetadataCache metadata) {
+    myFetcher = fetcher;
+    myMetadata = metadata;
+  }
+
+  /**
+   * Waits a bit for the comments of the task if they're not loaded yet, but never on the event dispatch thread,
+   * where the fetch is just started and no comments are returned for now.
+   */
+  @NotNull
+  @Override
+  public com.intellij.tasks.Comment[] commentsOf(@NotNull KanbaneryTask task) {
+    long taskId = task.getTaskId();
+    long updatedAt = task.getUpdatedAt();
+
+    CachedComments cached = myComments.get(taskId);
+    if (cached != null && cached.updatedAt == updatedAt) {
+      return cached.comments;
+    }
+
+    Future<CachedComments> loading = load(taskId, updatedAt);
+    if (isDispatchThread()) {
+      return com.intellij.tasks.Comment.EMPTY_ARRAY;
+    }
+
+    try {
+      return loading.get(WAIT_FOR_COMMENTS_SECONDS, TimeUnit.SECONDS).comments;
+    } catch (Exception e) {
+      LOG.info("Unable to load comments of task " + taskId + ": " + e.getMessage());
+      return com.intellij.tasks.Comment.EMPTY_ARRAY;
+    }
+  }
+
+  /**
+   * Stops fetching: fetches in progress are cancelled and no new ones are started, cached comments are still served.
+   */
+  public void close() {
+    myClosed = true;
+    for (FutureTask<CachedComments> fetch : myInFlight.values()) {
+      fetch.cancel(true);
+    }
+    myInFlight.clear();
+  }
+
+  /**
+   * Forgets the comments of a task, for example because a sync removed it.
+   */
+  public void invalidate(long taskId) {
+    myComments.invalidate(taskId);
+  }
+
+  private Future<CachedComments> load(final long taskId, final long updatedAt) {
+    if (myClosed) {
+      return NOTHING_TO_LOAD;
+    }
+
+    FutureTask<CachedComments> existing = myInFlight.get(taskId);
+    if (existing != null) {
+      return existing;
+    }
+
+    FutureTask<CachedComments> fetch = new FutureTask<CachedComments>(new Callable<CachedComments>() {
+      @Override
+      public CachedComments call() throws Exception {
+        try {
+          List<KanbaneryComment> comments = Lists.transform(myFetcher.fetch(taskId), KanbaneryComment.transformUsing(myMetadata.get().getUsers()));
+          KanbaneryComment[] rendered = comments.toArray(new KanbaneryComment[comments.size()]);
+          for (KanbaneryComment comment : rendered) {
+            comment.toHtml();
+          }
+          CachedComments loaded = new CachedComments(updatedAt, rendered);
+          myComments.put(taskId, loaded);
+          return loaded;
+        } finally {
+          myInFlight.remove(taskId);
+        }
+      }
+    });
+
+    existing = myInFlight.putIfAbsent(taskId, fetch);
+    if (existing != null) {
+      return existing;
+    }
+
+    if (myClosed) {
+      // closed while we were setting it up, close() may have missed it
+      fetch.cancel(false);
+      myInFlight.remove(taskId, fetch);
+      return NOTHING_TO_LOAD;
+    }
+    ourFetchers.execute(fetch);
+    return fetch;
+  }
+
+  private static boolean isDispatchThread() {
+    Application application = ApplicationManager.getApplication();
+    return application != null && application.isDispatchThread();
+  }
+
+  private static class CachedComments {
+    final long updatedAt;
+    final com.intellij.tasks.Comment[] comments;
+
+    CachedComments(long updatedAt, com.intellij.tasks.Comment[] comments) {
+      this.updatedAt = updatedAt;
+      this.comments = comments;
+    }
+  }
+}
@@ -0,0 +1,333 @@
+package pl.project13.intellij.kanbanery.sync;
+
+import com.google.common.io.CountingInputStream;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import pl.project13.intellij.kanbanery.metrics.KanbaneryMetrics;
+import pl.project13.janbanery.resources.Column;
+import pl.project13.janbanery.resources.Project;
+import pl.project13.janbanery.resources.Task;
+import pl.project13.janbanery.resources.TaskType;
+import pl.project13.janbanery.resources.User;
+import pl.project13.janbanery.resources.Workspace;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static com.google.common.collect.Maps.newConcurrentMap;
+
+/**
+ * Fetches Kanbanery resources gzipped and, once a resource was read, with the ETag / Last-Modified it came with,
+ * so a resource that did not change costs a 304 and nothing to download or parse. Janbanery can do neither.
+ * <p/>
+ * The bytes transferred (compressed) and the 304s are recorded per resource in the {@link KanbaneryMetrics}.
+ *
+ * @author Konrad Malawski
+ */
+public class ConditionalGet {
+
+  private static final int CONNECT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(10);
+  private static final int READ_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(30);
+
+  /**
+   * Reads a resource from its json.
+   */
+  public interface Parser<T> {
+    @NotNull
+    T parse(@NotNull JsonReader reader) throws IOException;
+  }
+
+  public static final Parser<List<Task>> TASKS = new Parser<List<Task>>() {
+    @NotNull
+    @Override
+    public List<Task> parse(@NotNull JsonReader reader) throws IOException {
+      List<Task> tasks = new ArrayList<Task>();
+      reader.beginArray();
+      while (reader.hasNext()) {
+        tasks.add(TaskStream.readTask(reader));
+      }
+      reader.endArray();
+      return tasks;
+    }
+  };
+
+  public static final Parser<List<TaskType>> TASK_TYPES = new Parser<List<TaskType>>() {
+    @NotNull
+    @Override
+    public List<TaskType> parse(@NotNull JsonReader reader) throws IOException {
+      List<TaskType> taskTypes = new ArrayList<TaskType>();
+      reader.beginArray();
+      while (reader.hasNext()) {
+        TaskType taskType = new TaskType();
+        reader.beginObject();
+        while (reader.hasNext()) {
+          String name = reader.nextName();
+          if (skipNull(reader)) {
+            continue;
+          }
+          if ("id".equals(name)) {
+            taskType.setId(reader.nextLong());
+          } else if ("name".equals(name)) {
+            taskType.setName(reader.nextString());
+          } else {
+            reader.skipValue();
+          }
+        }
+        reader.endObject();
+        taskTypes.add(taskType);
+      }
+      reader.endArray();
+      return taskTypes;
+    }
+  };
+
+  /**
+   * like Janbanery's {@code users().allWithNobody()}, with {@link User.NoOne} for tasks nobody is assigned to
+   */
+  public static final Parser<List<User>> USERS_WITH_NOBODY = new Parser<List<User>>() {
+    @NotNull
+    @Override
+    public List<User> parse(@NotNull JsonReader reader) throws IOException {
+      List<User> users = new ArrayList<User>();
+      reader.beginArray();
+      while (reader.hasNext()) {
+        User user = new User();
+        reader.beginObject();
+        while (reader.hasNext()) {
+          String name = reader.nextName();
+          if (skipNull(reader)) {
+            continue;
+          }
+          if ("id".equals(name)) {
+            user.setId(reader.nextLong());
+          } else if ("first_name".equals(name)) {
+            user.setFirstName(reader.nextString());
+          } else if ("last_name".equals(name)) {
+            user.setLastName(reader.nextString());
+          } else if ("email".equals(name)) {
+            user.setEmail(reader.nextString());
+          } else if ("gravatar_url".equals(name)) {
+            user.setGravatarUrl(reader.nextString());
+          } else {
+            reader.skipValue();
+          }
+        }
+        reader.endObject();
+        users.add(user);
+      }
+      reader.endArray();
+      users.add(new User.NoOne());
+      return users;
+    }
+  };
+
+  /**
+   * only what the plugin uses of a column, its id and name
+   */
+  public static final Parser<List<Column>> COLUMNS = new Parser<List<Column>>() {
+    @NotNull
+    @Override
+    public List<Column> parse(@NotNull JsonReader reader) throws IOException {
+      List<Column> columns = new ArrayList<Column>();
+      reader.beginArray();
+      while (reader.hasNext()) {
+        Column column = new Column();
+        reader.beginObject();
+        while (reader.hasNext()) {
+          String name = reader.nextName();
+          if (skipNull(reader)) {
+            continue;
+          }
+          if ("id".equals(name)) {
+            column.setId(reader.nextLong());
+          } else if ("name".equals(name)) {
+            column.setName(reader.nextString());
+          } else {
+            reader.skipValue();
+          }
+        }
+        reader.endObject();
+        columns.add(column);
+      }
+      reader.endArray();
+      return columns;
+    }
+  };
+
+  public static final Parser<List<Workspace>> WORKSPACES = new Parser<List<Workspace>>() {
+    @NotNull
+    @Override
+    public List<Workspace> parse(@NotNull JsonReader reader) throws IOException {
+      List<Workspace> workspaces = new ArrayList<Workspace>();
+      reader.beginArray();
+      while (reader.hasNext()) {
+        Workspace workspace = new Workspace();
+        reader.beginObject();
+        while (reader.hasNext()) {
+          String name = reader.nextName();
+          if (skipNull(reader)) {
+            continue;
+          }
+          if ("id".equals(name)) {
+            workspace.setId(reader.nextLong());
+          } else if ("name".equals(name)) {
+            workspace.setName(reader.nextString());
+          } else if ("projects".equals(name)) {
+            workspace.setProjects(readProjects(reader));
+          } else {
+            reader.skipValue();
+          }
+        }
+        reader.endObject();
+        workspaces.add(workspace);
+      }
+      reader.endArray();
+      return workspaces;
+    }
+  };
+
+  private final Map<String, String> myHeaders;
+
+  /**
+   * by url, only for resources that were read completely
+   */
+  private final ConcurrentMap<String, Validators> myValidators = newConcurrentMap();
+
+  /**
+   * @param headers sent with every request, e.g. for authentication
+   */
+  public ConditionalGet(@NotNull Map<String, String> headers) {
+    myHeaders = headers;
+  }
+
+  /**
+   * @param operation what to record the call as in the {@link KanbaneryMetrics}
+   * @return the resource, or null if it did not change since it was last read through this instance
+   */
+  @Nullable
+  public <T> T get(@NotNull String operation, @NotNull String url, @NotNull Parser<T> parser) throws IOException {
+    KanbaneryMetrics.Timer timer = KanbaneryMetrics.getInstance().start(operation);
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    CountingInputStream counted = null;
+    try {
+      connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+      connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+      connection.setRequestProperty("Accept", "application/json");
+      connection.setRequestProperty("Accept-Encoding", "gzip");
+      for (Map.Entry<String, String> header : myHeaders.entrySet()) {
+        connection.setRequestProperty(header.getKey(), header.getValue());
+      }
+
+      Validators validators = myValidators.get(url);
+      if (validators != null) {
+        if (validators.etag != null) {
+          connection.setRequestProperty("If-None-Match", validators.etag);
+        }
+        if (validators.lastModified != null) {
+          connection.setRequestProperty("If-Modified-Since", validators.lastModified);
+        }
+      }
+
+      int status = connection.getResponseCode();
+      if (status == HttpURLConnection.HTTP_NOT_MODIFIED && validators != null) {
+        timer.notModified();
+        return null;
+      }
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new HttpStatusException(status, "Kanbanery answered " + status + " for " + url);
+      }
+
+      counted = new CountingInputStream(connection.getInputStream());
+      InputStream in = "gzip".equalsIgnoreCase(connection.getContentEncoding()) ? new GZIPInputStream(counted) : counted;
+      T resource = parser.parse(new JsonReader(new InputStreamReader(in, "UTF-8")));
+
+      String etag = connection.getHeaderField("ETag");
+      String lastModified = connection.getHeaderField("Last-Modified");
+      if (etag != null || lastModified != null) {
+        myValidators.put(url, new Validators(etag, lastModified));
+      } else {
+        myValidators.remove(url);
+      }
+
+      timer.success(KanbaneryMetrics.itemsOf(resource), counted.getCount());
+      return resource;
+    } catch (IOException e) {
+      timer.failure();
+      throw e;
+    } catch (RuntimeException e) {
+      timer.failure();
+      throw e;
+    } finally {
+      if (counted != null) {
+        try {
+          counted.close();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+  }
+
+  /**
+   * Makes the next request for the url unconditional, e.g. because what was read last time is not around anymore.
+   */
+  public void forget(@NotNull String url) {
+    myValidators.remove(url);
+  }
+
+  private static List<Project> readProjects(JsonReader reader) throws IOException {
+    List<Project> projects = new ArrayList<Project>();
+    reader.beginArray();
+    while (reader.hasNext()) {
+      Project project = new Project();
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (skipNull(reader)) {
+          continue;
+        }
+        if ("id".equals(name)) {
+          project.setId(reader.nextLong());
+        } else if ("name".equals(name)) {
+          project.setName(reader.nextString());
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+      projects.add(project);
+    }
+    reader.endArray();
+    return projects;
+  }
+
+  private static boolean skipNull(JsonReader reader) throws IOException {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return true;
+    }
+    return false;
+  }
+
+  private static class Validators {
+    @Nullable
+    final String etag;
+    @Nullable
+    final String lastModified;
+
+    Validators(@Nullable String etag, @Nullable String lastModified) {
+      this.etag = etag;
+      this.lastModified = lastModified;
+    }
+  }
+}
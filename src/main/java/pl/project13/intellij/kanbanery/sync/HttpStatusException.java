@@ -0,0 +1,29 @@
+package pl.project13.intellij.kanbanery.sync;
+
+import java.io.IOException;
+
+/**
+ * Kanbanery answered, but not with a 200, so the caller can tell a server error (5xx) from a rejected request (4xx).
+ *
+ * @author Konrad Malawski
+ */
+public class HttpStatusException extends IOException {
+
+  private final int myStatus;
+
+  public HttpStatusException(int status, String message) {
+    super(message);
+    myStatus = status;
+  }
+
+  public int getStatus() {
+    return myStatus;
+  }
+
+  /**
+   * @return true for a 5xx, which means Kanbanery itself is in trouble
+   */
+  public boolean isServerError() {
+    return myStatus >= 500;
+  }
+}
@@ -0,0 +1,135 @@
+package pl.project13.intellij.kanbanery.sync;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the current {@link BoardMetadata} of a board and refreshes it in the background.
+ * <p/>
+ * Refreshed metadata is only published (with a new version) if its content actually changed.
+ * Callers that need the metadata can {@link #await(long, TimeUnit)} the first load instead of racing it.
+ *
+ * @author Konrad Malawski
+ */
+public class MetadataCache {
+
+  private final static Logger LOG = Logger.getInstance("#pl.project13.intellij.kanbanery.sync.MetadataCache");
+
+  /**
+   * Fetches the metadata from Kanbanery, called on a background thread.
+   */
+  public interface Loader {
+    @NotNull
+    BoardMetadata load() throws Exception;
+  }
+
+  /**
+   * loads run here rather than on the {@link BackgroundExecutor} workers, syncs running there wait for them
+   */
+  private static final ExecutorService ourLoaders = BackgroundExecutor.newBoundedPool("Kanbanery metadata", 2);
+
+  private final Loader myLoader;
+
+  private final AtomicReference<BoardMetadata> myCurrent = new AtomicReference<BoardMetadata>(BoardMetadata.EMPTY);
+  private final CountDownLatch myFirstLoad = new CountDownLatch(1);
+  private final AtomicBoolean myRefreshing = new AtomicBoolean();
+
+  private ScheduledFuture<?> myScheduledRefresh;
+
+  public MetadataCache(@NotNull Loader loader) {
+    myLoader = loader;
+  }
+
+  /**
+   * @return the current metadata, never blocks (and may be {@link BoardMetadata#EMPTY} before the first load)
+   */
+  @NotNull
+  public BoardMetadata get() {
+    return myCurrent.get();
+  }
+
+  /**
+   * Waits until the metadata was loaded (or failed to load) at least once, but no longer than the timeout.
+   *
+   * @return the current metadata, which is still empty if the timeout passed
+   */
+  @NotNull
+  public BoardMetadata await(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+    if (!myFirstLoad.await(timeout, unit)) {
+      LOG.info("Task types and users are still loading, continuing without them");
+    }
+    return get();
+  }
+
+  /**
+   * Publishes the given metadata if it differs from the current one.
+   *
+   * @return the metadata that is current afterwards
+   */
+  @NotNull
+  public BoardMetadata publish(@NotNull BoardMetadata candidate) {
+    while (true) {
+      BoardMetadata current = myCurrent.get();
+      if (current.getVersion() > 0 && current.sameContentAs(candidate)) {
+        myFirstLoad.countDown();
+        return current;
+      }
+
+      BoardMetadata next = candidate.withVersion(current.getVersion() + 1);
+      if (myCurrent.compareAndSet(current, next)) {
+        myFirstLoad.countDown();
+        return next;
+      }
+    }
+  }
+
+  /**
+   * Loads the metadata in the background, unless a refresh is already running.
+   */
+  public void refresh() {
+    if (!myRefreshing.compareAndSet(false, true)) {
+      return;
+    }
+
+    ourLoaders.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          publish(myLoader.load());
+        } catch (Exception e) {
+          LOG.warn("Unable to load task types and users: " + e.getMessage());
+          myFirstLoad.countDown(); // nobody should wait the full timeout for a load that failed already
+        } finally {
+          myRefreshing.set(false);
+        }
+      }
+    });
+  }
+
+  /**
+   * Refreshes the metadata now and then every {@code periodMillis}.
+   */
+  public synchronized void scheduleRefresh(long periodMillis) {
+    stop();
+    myScheduledRefresh = BackgroundExecutor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        refresh();
+      }
+    }, 0, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stop() {
+    if (myScheduledRefresh != null) {
+      myScheduledRefresh.cancel(false);
+      myScheduledRefresh = null;
+    }
+  }
+}
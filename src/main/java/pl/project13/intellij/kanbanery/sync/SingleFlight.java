@@ -0,0 +1,125 @@
+package pl.project13.intellij.kanbanery.sync;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Lets concurrent callers asking for the same key share one computation: the first one starts it, all of them wait for
+ * its result (or exception). A finished result can be handed out for a short while longer, for callers arriving right
+ * after it was computed.
+ * <p/>
+ * The computation runs on a pool of its own, never on a caller's thread: a caller that is interrupted (cancelled, or past
+ * its deadline) just stops waiting, the computation goes on for everyone else.
+ *
+ * @author Konrad Malawski
+ */
+public class SingleFlight<K, V> {
+
+  /**
+   * finished flights are swept once there are more than this many keys
+   */
+  private static final int SWEEP_THRESHOLD = 64;
+
+  private static final ExecutorService ourExecutor = BackgroundExecutor.newBoundedPool("Kanbanery flights", 8);
+
+  private final ConcurrentMap<K, Flight> myFlights = new ConcurrentHashMap<K, Flight>();
+  private final long myReuseMillis;
+
+  /**
+   * @param reuseMillis how long a finished result is shared with new callers, 0 to share only while it is in flight
+   */
+  public SingleFlight(long reuseMillis) {
+    myReuseMillis = reuseMillis;
+  }
+
+  /**
+   * @throws InterruptedException if the caller was interrupted while waiting, the computation is not
+   */
+  public V execute(@NotNull K key, @NotNull Callable<V> computation) throws Exception {
+    Flight flight;
+    boolean ours = false;
+    while (true) {
+      flight = myFlights.get(key);
+      if (flight != null && !flight.isExpired(myReuseMillis)) {
+        break;
+      }
+
+      Flight created = new Flight(key, computation);
+      if (flight == null ? myFlights.putIfAbsent(key, created) == null : myFlights.replace(key, flight, created)) {
+        flight = created;
+        ours = true;
+        break;
+      }
+    }
+
+    if (ours) {
+      ourExecutor.execute(flight);
+    }
+
+    try {
+      return flight.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * @return how many keys are in flight (or still reused)
+   */
+  public int size() {
+    return myFlights.size();
+  }
+
+  private void sweep() {
+    if (myFlights.size() <= SWEEP_THRESHOLD) {
+      return;
+    }
+    for (Iterator<Map.Entry<K, Flight>> it = myFlights.entrySet().iterator(); it.hasNext(); ) {
+      if (it.next().getValue().isExpired(myReuseMillis)) {
+        it.remove();
+      }
+    }
+  }
+
+  private class Flight extends FutureTask<V> {
+    private final K myKey;
+    private volatile long myDoneAt;
+    private volatile boolean myFailed;
+
+    Flight(K key, Callable<V> computation) {
+      super(computation);
+      myKey = key;
+    }
+
+    @Override
+    protected void setException(Throwable t) {
+      myFailed = true;
+      super.setException(t);
+    }
+
+    @Override
+    protected void done() {
+      myDoneAt = System.currentTimeMillis();
+      if (myReuseMillis <= 0 || myFailed) {
+        myFlights.remove(myKey, this);
+      }
+      sweep();
+    }
+
+    boolean isExpired(long reuseMillis) {
+      return isDone() && (myFailed || System.currentTimeMillis() - myDoneAt > reuseMillis);
+    }
+  }
+}
@@ -0,0 +1,287 @@
+package pl.project13.intellij.kanbanery.sync;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.collect.Maps.newConcurrentMap;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static com.google.common.collect.Sets.newHashSet;
+
+/**
+ * Write-behind queue of "ready to pull" changes, so that switching tasks never waits for Kanbanery.
+ * <p/>
+ * Only the last requested state of each task is kept, older pending changes of the same task are simply replaced.
+ * The queue is drained by at most {@link #MAX_CONCURRENT_WRITES} writes at a time, failed writes are retried
+ * with exponential backoff and dropped after {@link #MAX_ATTEMPTS} attempts, which the {@link Listener} is told about.
+ * A write refused because Kanbanery is known to be down ({@link CircuitOpenException}) is not counted as an attempt.
+ * Pending changes are kept in a small journal file, so they survive an IDE restart.
+ * <p/>
+ * Only one queue at a time works off a journal: a queue created for a journal another queue still has open takes it over,
+ * {@link #close() closing} the previous one first.
+ *
+ * @author Konrad Malawski
+ */
+public class TaskStateQueue {
+
+  private final static Logger LOG = Logger.getInstance("#pl.project13.intellij.kanbanery.sync.TaskStateQueue");
+
+  private static final int MAX_CONCURRENT_WRITES = 2;
+  private static final int MAX_ATTEMPTS = 10;
+  private static final long FIRST_RETRY_DELAY_MILLIS = 1000;
+  private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  private static final long CIRCUIT_OPEN_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  private static final long CLOSE_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  /**
+   * the open queue of every journal
+   */
+  private static final ConcurrentMap<File, TaskStateQueue> ourOwners = newConcurrentMap();
+
+  /**
+   * Actually applies a change, called on a background thread.
+   */
+  public interface Writer {
+    void markReadyToPull(long taskId, boolean readyToPull) throws Exception;
+  }
+
+  /**
+   * Told about changes that are given up on, called on a background thread.
+   */
+  public interface Listener {
+    void dropped(long taskId, boolean readyToPull, @NotNull Exception cause);
+  }
+
+  private final File myJournal;
+  private final Writer myWriter;
+  private final Listener myListener;
+
+  // all guarded by this
+  private final Map<Long, Boolean> myPending = newLinkedHashMap();
+  private final Set<Long> myInFlight = newHashSet();
+  private final Map<Long, Integer> myAttempts = newHashMap();
+  private final Map<Long, Long> myRetryAt = newHashMap();
+  private boolean myClosed;
+
+  /**
+   * set if writes were still running when closing gave up waiting for them, they must not touch the journal anymore
+   */
+  private boolean myDetached;
+
+  public TaskStateQueue(@NotNull File journal, @NotNull Writer writer, @NotNull Listener listener) {
+    myJournal = journal.getAbsoluteFile();
+    myWriter = writer;
+    myListener = listener;
+
+    TaskStateQueue previous = ourOwners.put(myJournal, this);
+    if (previous != null) {
+      previous.close();
+    }
+
+    synchronized (this) {
+      readJournal();
+      drain();
+    }
+  }
+
+  /**
+   * @throws IllegalStateException if the queue was closed
+   */
+  public synchronized void enqueue(long taskId, boolean readyToPull) {
+    if (myClosed) {
+      throw new IllegalStateException("The state changes of " + myJournal.getName() + " are not written anymore");
+    }
+
+    myPending.put(taskId, readyToPull);
+    myAttempts.remove(taskId);
+    myRetryAt.remove(taskId);
+
+    writeJournal();
+    drain();
+  }
+
+  /**
+   * @return the changes not yet confirmed by Kanbanery, task id -> ready to pull
+   */
+  @NotNull
+  public synchronized Map<Long, Boolean> pending() {
+    return new LinkedHashMap<Long, Boolean>(myPending);
+  }
+
+  public synchronized int size() {
+    return myPending.size();
+  }
+
+  /**
+   * Stops writing: retries are dropped and no new writes are started, the ones in progress are waited for (a while).
+   * What is still pending stays in the journal, for the next queue of the same board.
+   */
+  public void close() {
+    synchronized (this) {
+      if (myClosed) {
+        return;
+      }
+      myClosed = true;
+
+      long deadline = System.currentTimeMillis() + CLOSE_WAIT_MILLIS;
+      try {
+        for (long left = CLOSE_WAIT_MILLIS; !myInFlight.isEmpty() && left > 0; left = deadline - System.currentTimeMillis()) {
+          wait(left);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (!myInFlight.isEmpty()) {
+        LOG.info("Not waiting for " + myInFlight.size() + " task state changes anymore, they will be written again");
+        myDetached = true;
+      }
+    }
+    ourOwners.remove(myJournal, this);
+  }
+
+  private synchronized void drain() {
+    if (myClosed) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+
+    for (Map.Entry<Long, Boolean> entry : myPending.entrySet()) {
+      if (myInFlight.size() >= MAX_CONCURRENT_WRITES) {
+        return;
+      }
+
+      Long taskId = entry.getKey();
+      Long retryAt = myRetryAt.get(taskId);
+      if (myInFlight.contains(taskId) || (retryAt != null && retryAt > now)) {
+        continue;
+      }
+
+      myInFlight.add(taskId);
+      submit(taskId, entry.getValue());
+    }
+  }
+
+  private void submit(final long taskId, final boolean readyToPull) {
+    BackgroundExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          myWriter.markReadyToPull(taskId, readyToPull);
+          written(taskId, readyToPull);
+        } catch (Exception e) {
+          failed(taskId, e);
+        }
+      }
+    });
+  }
+
+  private synchronized void written(long taskId, boolean readyToPull) {
+    myInFlight.remove(taskId);
+    notifyAll();
+    if (myDetached) {
+      return;
+    }
+
+    myAttempts.remove(taskId);
+    myRetryAt.remove(taskId);
+
+    Boolean pending = myPending.get(taskId);
+    if (pending != null && pending == readyToPull) {
+      myPending.remove(taskId);
+      writeJournal();
+    } // else it was changed again while we were writing, the newer state is still pending
+
+    drain();
+  }
+
+  private void failed(long taskId, Exception e) {
+    Boolean dropped = null;
+    synchronized (this) {
+      myInFlight.remove(taskId);
+      notifyAll();
+      if (myClosed) {
+        return; // still pending in the journal
+      }
+
+      Integer attempts = myAttempts.get(taskId);
+      if (!(e instanceof CircuitOpenException)) {
+        attempts = attempts == null ? 1 : attempts + 1;
+      }
+
+      if (attempts != null && attempts >= MAX_ATTEMPTS) {
+        LOG.warn("Giving up on changing the state of task " + taskId + " after " + attempts + " attempts: " + e.getMessage());
+        dropped = myPending.remove(taskId);
+        myAttempts.remove(taskId);
+        myRetryAt.remove(taskId);
+        writeJournal();
+      } else {
+        long delay = attempts == null
+                     ? CIRCUIT_OPEN_RETRY_DELAY_MILLIS
+                     : Math.min(FIRST_RETRY_DELAY_MILLIS << (attempts - 1), MAX_RETRY_DELAY_MILLIS);
+        LOG.info("Unable to change the state of task " + taskId + ", retrying in " + delay + "ms: " + e.getMessage());
+
+        if (attempts != null) {
+          myAttempts.put(taskId, attempts);
+        }
+        myRetryAt.put(taskId, System.currentTimeMillis() + delay);
+        BackgroundExecutor.schedule(new Runnable() {
+          @Override
+          public void run() {
+            drain();
+          }
+        }, delay, TimeUnit.MILLISECONDS);
+      }
+
+      drain();
+    }
+
+    if (dropped != null) {
+      myListener.dropped(taskId, dropped, e);
+    }
+  }
+
+  private void readJournal() {
+    if (!myJournal.isFile()) {
+      return;
+    }
+
+    try {
+      for (String line : FileUtil.loadFile(myJournal).split("\n")) {
+        String[] parts = line.trim().split(" ");
+        if (parts.length == 2) {
+          myPending.put(Long.parseLong(parts[0]), Boolean.parseBoolean(parts[1]));
+        }
+      }
+      LOG.info("Resuming " + myPending.size() + " pending task state changes");
+    } catch (Exception e) {
+      LOG.warn("Ignoring unreadable journal " + myJournal + ": " + e.getMessage());
+      myPending.clear();
+    }
+  }
+
+  private void writeJournal() {
+    try {
+      if (myPending.isEmpty()) {
+        FileUtil.delete(myJournal);
+        return;
+      }
+
+      StringBuilder journal = new StringBuilder();
+      for (Map.Entry<Long, Boolean> entry : myPending.entrySet()) {
+        journal.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+      }
+      FileUtil.createParentDirs(myJournal);
+      FileUtil.writeToFile(myJournal, journal.toString().getBytes("UTF-8"));
+    } catch (IOException e) {
+      LOG.warn("Unable to write journal " + myJournal + ": " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,272 @@
+package pl.project13.intellij.kanbanery.sync;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.joda.time.DateTime;
+import pl.project13.intellij.kanbanery.model.CommentsProvider;
+import pl.project13.intellij.kanbanery.model.KanbaneryTask;
+import pl.project13.intellij.kanbanery.search.TaskIndex;
+import pl.project13.janbanery.resources.Task;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.collect.Maps.newConcurrentMap;
+import static com.google.common.collect.Sets.newHashSetWithExpectedSize;
+
+/**
+ * Local copy of the tasks of one or more boards, keyed by task id (which is unique across all of Kanbanery).
+ * Each sync of a board merges in only the tasks that changed since that board's last watermark and drops the ones
+ * that are gone from it, the {@link TaskIndex} used for searching is kept up to date along the way.
+ *
+ * @author Konrad Malawski
+ */
+public class TaskStore {
+
+  /**
+   * Notified about every task that was updated or removed by a sync.
+   */
+  public interface Listener {
+    void taskChanged(long id);
+  }
+
+  private final ConcurrentMap<Long, KanbaneryTask> myTasks = newConcurrentMap();
+  private final TaskIndex myIndex = new TaskIndex();
+
+  /**
+   * board -> highest {@code updatedAt} (in millis) seen during its last sync
+   */
+  private final Map<String, Long> myWatermarks = new HashMap<String, Long>();
+  private final Map<String, Long> myMetadataVersions = new HashMap<String, Long>();
+  private volatile boolean mySynced;
+  private volatile boolean myShowBoards;
+  private volatile Listener myListener;
+  private volatile CommentsProvider myCommentsProvider;
+
+  /**
+   * Merges a fresh listing of a board into the store, tasks of other boards are left alone.
+   *
+   * @param fetched  all tasks currently present on the board
+   * @param metadata used to resolve the type names of changed tasks, if it's a new version all of the board's tasks are re-wrapped
+   * @param board    "workspace/project" the tasks were fetched from
+   * @return how many tasks were added, updated or removed
+   */
+  public synchronized int merge(@NotNull List<Task> fetched, @NotNull BoardMetadata metadata, @NotNull String board) {
+    Long knownMetadataVersion = myMetadataVersions.put(board, metadata.getVersion());
+    boolean metadataChanged = knownMetadataVersion == null || knownMetadataVersion != metadata.getVersion();
+
+    Long knownWatermark = myWatermarks.get(board);
+    long watermark = knownWatermark == null ? 0 : knownWatermark;
+    long newWatermark = watermark;
+    int changed = 0;
+
+    Set<Long> seenIds = newHashSetWithExpectedSize(fetched.size());
+    for (Task task : fetched) {
+      if (task == null || task.getId() == null) {
+        continue;
+      }
+      seenIds.add(task.getId());
+
+      long updatedAt = millis(task.getUpdatedAt());
+      newWatermark = Math.max(newWatermark, updatedAt);
+
+      KanbaneryTask known = myTasks.get(task.getId());
+      if (known == null || metadataChanged || updatedAt > watermark || known.getUpdatedAt() != updatedAt) {
+        KanbaneryTask wrapped = new KanbaneryTask(task, metadata.getTaskType(task.getTaskTypeId()), myCommentsProvider, board, myShowBoards);
+        myTasks.put(task.getId(), wrapped);
+        myIndex.update(task.getId(), wrapped);
+        fireTaskChanged(task.getId());
+        changed++;
+      }
+    }
+
+    // cheap id reconciliation, anything we did not see anymore was deleted (or moved away) on the board
+    for (Iterator<Map.Entry<Long, KanbaneryTask>> it = myTasks.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Long, KanbaneryTask> entry = it.next();
+      Long id = entry.getKey();
+      if (board.equals(entry.getValue().getBoard()) && !seenIds.contains(id)) {
+        it.remove();
+        myIndex.remove(id);
+        fireTaskChanged(id);
+        changed++;
+      }
+    }
+
+    myWatermarks.put(board, newWatermark);
+    mySynced = true;
+    return changed;
+  }
+
+  /**
+   * Adds part of a board's listing while it is still being downloaded. Nothing is removed and the board does not count
+   * as synced, the next {@link #merge} re-wraps all of its tasks.
+   */
+  public synchronized void add(@NotNull List<Task> fetched, @NotNull BoardMetadata metadata, @NotNull String board) {
+    for (Task task : fetched) {
+      if (task == null || task.getId() == null) {
+        continue;
+      }
+      KanbaneryTask wrapped = new KanbaneryTask(task, metadata.getTaskType(task.getTaskTypeId()), myCommentsProvider, board, myShowBoards);
+      myTasks.put(task.getId(), wrapped);
+      myIndex.update(task.getId(), wrapped);
+      fireTaskChanged(task.getId());
+    }
+  }
+
+  /**
+   * Applies a state change locally, before Kanbanery confirms it.
+   */
+  public void markReadyToPull(long id, boolean readyToPull) {
+    KanbaneryTask task = myTasks.get(id);
+    if (task != null) {
+      KanbaneryTask marked = task.withReadyToPull(readyToPull);
+      if (marked != task && myTasks.replace(id, task, marked)) {
+        fireTaskChanged(id);
+      }
+    }
+  }
+
+  /**
+   * Finds the best {@code max} tasks matching the query using the index, without sorting all matches.
+   *
+   * @param query words (or their beginnings) to look for, an empty query matches every task
+   * @param max   how many tasks to return at most, 0 or less means no limit
+   * @param since only tasks updated after this moment (millis) are considered, 0 considers all of them
+   * @return matching tasks, best match first; ties are broken by the most recently updated task
+   */
+  @NotNull
+  public List<KanbaneryTask> search(@Nullable String query, int max, long since) {
+    Map<Long, Integer> scores = myIndex.match(query);
+    if (scores == null) {
+      // no tokens in the query, everything matches equally
+      scores = new HashMap<Long, Integer>();
+      for (Long id : myTasks.keySet()) {
+        scores.put(id, 0);
+      }
+    }
+
+    int limit = max > 0 ? max : Integer.MAX_VALUE;
+    PriorityQueue<ScoredTask> top = new PriorityQueue<ScoredTask>(Math.min(limit, Math.max(scores.size(), 1)) + 1);
+    for (Map.Entry<Long, Integer> entry : scores.entrySet()) {
+      KanbaneryTask task = myTasks.get(entry.getKey());
+      if (task == null || (since > 0 && task.getUpdatedAt() <= since)) {
+        continue;
+      }
+
+      top.offer(new ScoredTask(task, entry.getValue()));
+      if (top.size() > limit) {
+        top.poll(); // drop the worst one
+      }
+    }
+
+    KanbaneryTask[] best = new KanbaneryTask[top.size()];
+    for (int i = best.length - 1; i >= 0; i--) {
+      best[i] = top.poll().task;
+    }
+    return Arrays.asList(best);
+  }
+
+  /**
+   * @return the stored tasks of a board as Janbanery resources, for example to write a {@link BoardSnapshot}
+   */
+  @NotNull
+  public List<Task> resources(@NotNull String board) {
+    List<Task> resources = new ArrayList<Task>(myTasks.size());
+    for (KanbaneryTask task : myTasks.values()) {
+      if (board.equals(task.getBoard())) {
+        resources.add(task.toResource());
+      }
+    }
+    return resources;
+  }
+
+  @Nullable
+  public KanbaneryTask get(long id) {
+    return myTasks.get(id);
+  }
+
+  /**
+   * @return the version of the metadata the board's tasks were last merged with, 0 if they were never merged
+   */
+  public synchronized long getMetadataVersion(@NotNull String board) {
+    Long version = myMetadataVersions.get(board);
+    return version == null ? 0 : version;
+  }
+
+  /**
+   * Whether task names should say which board they come from, changing it forgets all tasks so they are re-wrapped on the next sync.
+   */
+  public synchronized void setShowBoards(boolean showBoards) {
+    if (myShowBoards != showBoards) {
+      clear();
+      myShowBoards = showBoards;
+    }
+  }
+
+  /**
+   * @return true if anything was merged in since the store was created or cleared, even if the board was empty
+   */
+  public boolean isSynced() {
+    return mySynced;
+  }
+
+  public int size() {
+    return myTasks.size();
+  }
+
+  public synchronized void clear() {
+    for (Long id : myTasks.keySet()) {
+      fireTaskChanged(id);
+    }
+    myTasks.clear();
+    myIndex.clear();
+    myWatermarks.clear();
+    myMetadataVersions.clear();
+    mySynced = false;
+  }
+
+  public void setListener(@Nullable Listener listener) {
+    myListener = listener;
+  }
+
+  /**
+   * @param commentsProvider handed to every task wrapped from now on, so they can load their comments lazily
+   */
+  public void setCommentsProvider(@Nullable CommentsProvider commentsProvider) {
+    myCommentsProvider = commentsProvider;
+  }
+
+  private void fireTaskChanged(long id) {
+    Listener listener = myListener;
+    if (listener != null) {
+      listener.taskChanged(id);
+    }
+  }
+
+  /**
+   * Ordered worst-first, so the head of a priority queue is the one to drop.
+   */
+  private static class ScoredTask implements Comparable<ScoredTask> {
+    final KanbaneryTask task;
+    final int score;
+    final long updated;
+
+    ScoredTask(KanbaneryTask task, int score) {
+      this.task = task;
+      this.score = score;
+      this.updated = task.getUpdatedAt();
+    }
+
+    @Override
+    public int compareTo(ScoredTask other) {
+      if (score != other.score) {
+        return score < other.score ? -1 : 1;
+      }
+      return updated < other.updated ? -1 : (updated == other.updated ? 0 : 1);
+    }
+  }
+
+  private static long millis(@Nullable DateTime dateTime) {
+    return dateTime == null ? 0 : dateTime.getMillis();
+  }
+}
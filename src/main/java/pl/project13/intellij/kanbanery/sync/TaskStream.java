@@ -0,0 +1,147 @@
+package pl.project13.intellij.kanbanery.sync;
+
+import com.google.common.io.CountingInputStream;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.jetbrains.annotations.NotNull;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import pl.project13.intellij.kanbanery.metrics.KanbaneryMetrics;
+import pl.project13.janbanery.resources.Task;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a Kanbanery task listing one task at a time while it is being downloaded, instead of parsing all of it
+ * (like Janbanery does) before anything can be shown. The download is abandoned as soon as the handler had enough.
+ *
+ * @author Konrad Malawski
+ */
+public class TaskStream {
+
+  private static final int CONNECT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(10);
+  private static final int READ_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(30);
+
+  private static final DateTimeFormatter DATES = ISODateTimeFormat.dateTimeParser().withOffsetParsed();
+
+  /**
+   * Gets every task as soon as it was parsed.
+   */
+  public interface Handler {
+    /**
+     * @return false to stop reading
+     */
+    boolean onTask(@NotNull Task task);
+  }
+
+  private final String myUrl;
+  private final Map<String, String> myHeaders;
+
+  public TaskStream(@NotNull String url, @NotNull Map<String, String> headers) {
+    myUrl = url;
+    myHeaders = headers;
+  }
+
+  /**
+   * @return true if the whole listing was read, false if the handler stopped early
+   */
+  public boolean read(@NotNull Handler handler) throws IOException {
+    KanbaneryMetrics.Timer timer = KanbaneryMetrics.getInstance().start(KanbaneryMetrics.TASKS_STREAM);
+    HttpURLConnection connection = (HttpURLConnection) new URL(myUrl).openConnection();
+    int tasks = 0;
+    CountingInputStream in = null;
+    try {
+      connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+      connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+      connection.setRequestProperty("Accept", "application/json");
+      for (Map.Entry<String, String> header : myHeaders.entrySet()) {
+        connection.setRequestProperty(header.getKey(), header.getValue());
+      }
+
+      int status = connection.getResponseCode();
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new HttpStatusException(status, "Kanbanery answered " + status + " for " + myUrl);
+      }
+
+      in = new CountingInputStream(connection.getInputStream());
+      JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+      reader.beginArray();
+      while (reader.hasNext()) {
+        tasks++;
+        if (!handler.onTask(readTask(reader))) {
+          timer.success(tasks, in.getCount());
+          return false;
+        }
+      }
+      reader.endArray();
+
+      timer.success(tasks, in.getCount());
+      return true;
+    } catch (IOException e) {
+      timer.failure();
+      throw e;
+    } catch (RuntimeException e) {
+      timer.failure();
+      throw e;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException ignored) {
+        }
+      }
+      // don't let the rest of an abandoned listing be read into the keep-alive pool
+      connection.disconnect();
+    }
+  }
+
+  static Task readTask(JsonReader reader) throws IOException {
+    Task task = new Task();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+        continue;
+      }
+
+      if ("id".equals(name)) {
+        task.setId(reader.nextLong());
+      } else if ("title".equals(name)) {
+        task.setTitle(reader.nextString());
+      } else if ("description".equals(name)) {
+        task.setDescription(reader.nextString());
+      } else if ("task_type_id".equals(name)) {
+        task.setTaskTypeId(reader.nextLong());
+      } else if ("task_type_name".equals(name)) {
+        task.setTaskTypeName(reader.nextString());
+      } else if ("type".equals(name)) {
+        task.setType(reader.nextString());
+      } else if ("ready_to_pull".equals(name)) {
+        task.setReadyToPull(reader.nextBoolean());
+      } else if ("created_at".equals(name)) {
+        task.setCreatedAt(date(reader.nextString()));
+      } else if ("updated_at".equals(name)) {
+        task.setUpdatedAt(date(reader.nextString()));
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return task;
+  }
+
+  private static DateTime date(String date) {
+    try {
+      return DATES.parseDateTime(date);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+}
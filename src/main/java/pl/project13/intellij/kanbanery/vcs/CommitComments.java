@@ -0,0 +1,60 @@
+package pl.project13.intellij.kanbanery.vcs;
+
+import com.intellij.tasks.Comment;
+import com.intellij.tasks.impl.SimpleComment;
+import org.jetbrains.annotations.NotNull;
+import pl.project13.intellij.kanbanery.model.CommentsProvider;
+import pl.project13.intellij.kanbanery.model.KanbaneryTask;
+
+import java.util.List;
+
+/**
+ * Adds the commits mentioning a task, as found by the {@link CommitIndexComponent}s of the open projects,
+ * to the comments of the task as one more comment after the Kanbanery ones.
+ *
+ * @author Konrad Malawski
+ */
+public class CommitComments implements CommentsProvider {
+
+  private static final int MAX_LISTED_COMMITS = 20;
+  private static final int SHORT_HASH_LENGTH = 7;
+
+  private final CommentsProvider myComments;
+
+  public CommitComments(@NotNull CommentsProvider comments) {
+    myComments = comments;
+  }
+
+  @NotNull
+  @Override
+  public Comment[] commentsOf(@NotNull KanbaneryTask task) {
+    Comment[] comments = myComments.commentsOf(task);
+
+    List<String> commits = CommitIndexComponent.commitsOfTask(task.getTaskId());
+    if (commits.isEmpty()) {
+      return comments;
+    }
+
+    Comment[] withCommits = new Comment[comments.length + 1];
+    System.arraycopy(comments, 0, withCommits, 0, comments.length);
+    withCommits[comments.length] = new SimpleComment(null, null, render(commits));
+    return withCommits;
+  }
+
+  private static String render(List<String> commits) {
+    StringBuilder builder = new StringBuilder(64 + commits.size() * 16);
+    builder.append("<b>Commits:</b> ");
+    int listed = Math.min(commits.size(), MAX_LISTED_COMMITS);
+    for (int i = 0; i < listed; i++) {
+      String commit = commits.get(i);
+      if (i > 0) {
+        builder.append(", ");
+      }
+      builder.append("<code>").append(commit.length() > SHORT_HASH_LENGTH ? commit.substring(0, SHORT_HASH_LENGTH) : commit).append("</code>");
+    }
+    if (commits.size() > listed) {
+      builder.append(" and ").append(commits.size() - listed).append(" more");
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,239 @@
+package pl.project13.intellij.kanbanery.vcs;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import pl.project13.intellij.kanbanery.cache.ChecksummedFile;
+import pl.project13.intellij.kanbanery.cache.Digests;
+import pl.project13.intellij.kanbanery.model.KanbaneryTask;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Which commits mention which Kanbanery task, through the {@code [#id]} that {@link KanbaneryTask#getSummary()} puts into
+ * every commit message, in both directions. Only commits mentioning a task are kept, together with the last indexed HEAD,
+ * so {@link #update(File)} only has to read the commits made since then.
+ * <p/>
+ * Stored as a {@link ChecksummedFile} holding the indexed HEAD, then one record per commit (hash and task ids), oldest first.
+ * A file with an unknown version or a broken checksum is deleted and rebuilt.
+ *
+ * @author Konrad Malawski
+ */
+public class CommitIndex {
+
+  private final static Logger LOG = Logger.getInstance("#pl.project13.intellij.kanbanery.vcs.CommitIndex");
+
+  private static final int MAGIC = 0x4b434d54; // "KCMT"
+  private static final int SCHEMA_VERSION = 1;
+
+  private static final Pattern TASK_REFERENCE = Pattern.compile("\\[#(\\d{1,18})\\]");
+
+  private static final long[] NO_TASKS = new long[0];
+
+  /**
+   * commits of every task, oldest first; the hash strings are shared with {@link #myTasksByCommit}
+   */
+  private final Map<Long, List<String>> myCommitsByTask = new HashMap<Long, List<String>>();
+  private final Map<String, long[]> myTasksByCommit = new LinkedHashMap<String, long[]>();
+
+  @Nullable
+  private String myHead;
+
+  /**
+   * @return where the index of the repository at {@code root} is kept, in the IDE system directory
+   */
+  @NotNull
+  public static File fileFor(@NotNull File root) {
+    File dir = new File(PathManager.getSystemPath(), "kanbanery");
+    return new File(dir, "commits_" + Digests.sha1(root.getAbsolutePath()) + ".index");
+  }
+
+  /**
+   * @return the commits mentioning the task, newest first
+   */
+  @NotNull
+  public synchronized List<String> commitsOf(long taskId) {
+    List<String> commits = myCommitsByTask.get(taskId);
+    if (commits == null) {
+      return Collections.emptyList();
+    }
+    List<String> newestFirst = new ArrayList<String>(commits);
+    Collections.reverse(newestFirst);
+    return newestFirst;
+  }
+
+  /**
+   * @param commit the full hash of the commit
+   * @return the ids of the tasks the commit mentions
+   */
+  @NotNull
+  public synchronized long[] tasksOf(@NotNull String commit) {
+    long[] tasks = myTasksByCommit.get(commit);
+    return tasks == null ? NO_TASKS : tasks.clone();
+  }
+
+  /**
+   * @return the last commit the index is up to date with, null if nothing was indexed yet
+   */
+  @Nullable
+  public synchronized String getHead() {
+    return myHead;
+  }
+
+  /**
+   * @return how many commits mentioning a task are known
+   */
+  public synchronized int size() {
+    return myTasksByCommit.size();
+  }
+
+  /**
+   * Reads the commits made since the last update from the git repository containing {@code root}. The whole history is
+   * read if nothing was indexed yet, or the indexed HEAD is gone (e.g. the history was rewritten and garbage collected).
+   * Runs git, so never call it on the event dispatch thread.
+   *
+   * @return true if new commits were read
+   */
+  public boolean update(@NotNull File root) throws IOException {
+    String head = GitLog.head(root);
+    String since = getHead();
+    if (head.equals(since)) {
+      return false;
+    }
+
+    final Map<String, long[]> read = new LinkedHashMap<String, long[]>();
+    GitLog.Handler collector = new GitLog.Handler() {
+      @Override
+      public void onCommit(@NotNull String hash, @NotNull String message) {
+        long[] tasks = referencedTasks(message);
+        if (tasks.length > 0) {
+          read.put(hash, tasks);
+        }
+      }
+    };
+
+    boolean rebuild = since == null;
+    if (!rebuild) {
+      try {
+        GitLog.read(root, since, head, collector);
+      } catch (IOException e) {
+        LOG.info("Unable to read the commits since " + since + ", indexing the whole history again: " + e.getMessage());
+        read.clear();
+        rebuild = true;
+      }
+    }
+    if (rebuild) {
+      GitLog.read(root, null, head, collector);
+    }
+
+    synchronized (this) {
+      if (rebuild) {
+        myCommitsByTask.clear();
+        myTasksByCommit.clear();
+      }
+      for (Map.Entry<String, long[]> commit : read.entrySet()) {
+        add(commit.getKey(), commit.getValue());
+      }
+      myHead = head;
+    }
+    return true;
+  }
+
+  /**
+   * @return the ids of the tasks mentioned as {@code [#id]} in the message, each one once
+   */
+  @NotNull
+  static long[] referencedTasks(@NotNull String message) {
+    if (message.indexOf("[#") < 0) {
+      return NO_TASKS;
+    }
+
+    Set<Long> ids = new LinkedHashSet<Long>();
+    Matcher matcher = TASK_REFERENCE.matcher(message);
+    while (matcher.find()) {
+      ids.add(Long.parseLong(matcher.group(1)));
+    }
+
+    long[] tasks = new long[ids.size()];
+    int i = 0;
+    for (Long id : ids) {
+      tasks[i++] = id;
+    }
+    return tasks;
+  }
+
+  private void add(String hash, long[] tasks) {
+    if (myTasksByCommit.containsKey(hash)) {
+      return;
+    }
+    myTasksByCommit.put(hash, tasks);
+
+    for (long taskId : tasks) {
+      List<String> commits = myCommitsByTask.get(taskId);
+      if (commits == null) {
+        commits = new ArrayList<String>(2);
+        myCommitsByTask.put(taskId, commits);
+      }
+      commits.add(hash);
+    }
+  }
+
+  /**
+   * Writes the index to a temporary file first and then renames it, so a crash never leaves a half written file behind.
+   */
+  public void writeTo(@NotNull File file) throws IOException {
+    ChecksummedFile.write(file, MAGIC, SCHEMA_VERSION, new ChecksummedFile.Writer() {
+      @Override
+      public void write(@NotNull DataOutputStream out) throws IOException {
+        synchronized (CommitIndex.this) {
+          out.writeUTF(myHead == null ? "" : myHead);
+
+          out.writeInt(myTasksByCommit.size());
+          for (Map.Entry<String, long[]> commit : myTasksByCommit.entrySet()) {
+            out.writeUTF(commit.getKey());
+            long[] tasks = commit.getValue();
+            out.writeInt(tasks.length);
+            for (long taskId : tasks) {
+              out.writeLong(taskId);
+            }
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * @return the index stored in the file, or an empty one if there is none or it's unusable
+   */
+  @NotNull
+  public static CommitIndex readFrom(@NotNull File file) {
+    CommitIndex index = ChecksummedFile.read(file, MAGIC, SCHEMA_VERSION, new ChecksummedFile.Reader<CommitIndex>() {
+      @NotNull
+      @Override
+      public CommitIndex read(@NotNull DataInputStream in) throws IOException {
+        CommitIndex index = new CommitIndex();
+        String head = in.readUTF();
+        int commitCount = in.readInt();
+        for (int i = 0; i < commitCount; i++) {
+          String hash = in.readUTF();
+          int taskCount = in.readInt();
+          if (taskCount < 0 || taskCount > 1024) {
+            throw new IOException("Corrupted task count " + taskCount);
+          }
+          long[] tasks = new long[taskCount];
+          for (int j = 0; j < taskCount; j++) {
+            tasks[j] = in.readLong();
+          }
+          index.add(hash, tasks);
+        }
+        index.myHead = head.isEmpty() ? null : head;
+        return index;
+      }
+    });
+    return index == null ? new CommitIndex() : index;
+  }
+}
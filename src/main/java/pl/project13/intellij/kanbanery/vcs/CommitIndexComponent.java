@@ -0,0 +1,195 @@
+package pl.project13.intellij.kanbanery.vcs;
+
+import com.intellij.openapi.components.ProjectComponent;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.tasks.TaskManager;
+import com.intellij.tasks.TaskRepository;
+import org.jetbrains.annotations.NotNull;
+import pl.project13.intellij.kanbanery.KanbaneryRepository;
+import pl.project13.intellij.kanbanery.sync.BackgroundExecutor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the {@link CommitIndex} of the project's git repository up to date, in the background, as long as the project
+ * has a configured Kanbanery repository. The index is loaded from disk on the first update and then only the new commits
+ * are read, every few minutes, on a low priority thread of its own, so looking up the commits of a task (or the tasks of a commit) never waits for git.
+ *
+ * @author Konrad Malawski
+ */
+public class CommitIndexComponent implements ProjectComponent {
+
+  private final static Logger LOG = Logger.getInstance("#pl.project13.intellij.kanbanery.vcs.CommitIndexComponent");
+
+  private static final long UPDATE_PERIOD_MINUTES = 5;
+
+  /**
+   * shared by all projects, so however many are open, at most one git runs at a time
+   */
+  private static final ScheduledExecutorService ourExecutor = BackgroundExecutor.newLowPriorityThread("Kanbanery commit index");
+
+  private final Project myProject;
+
+  private volatile CommitIndex myIndex = new CommitIndex();
+  private volatile File myRoot;
+  private volatile File myFile;
+  private ScheduledFuture<?> myScheduledUpdate;
+
+  /**
+   * one update at a time, without blocking the project from closing meanwhile
+   */
+  private final Object myUpdateLock = new Object();
+
+  /**
+   * why git could not be asked for the HEAD last time (not a repository, no commits yet, no executable), logged only when it changes
+   */
+  private String myLastProblem;
+
+  public CommitIndexComponent(Project project) {
+    myProject = project;
+  }
+
+  @NotNull
+  public static CommitIndexComponent getInstance(@NotNull Project project) {
+    return project.getComponent(CommitIndexComponent.class);
+  }
+
+  /**
+   * @return the commits mentioning the task, newest first; empty while the index is still being built
+   */
+  @NotNull
+  public List<String> commitsOf(long taskId) {
+    return myIndex.commitsOf(taskId);
+  }
+
+  /**
+   * @return the ids of the tasks mentioned by the commit; empty while the index is still being built
+   */
+  @NotNull
+  public long[] tasksOf(@NotNull String commit) {
+    return myIndex.tasksOf(commit);
+  }
+
+  /**
+   * @return the commits mentioning the task in any of the open projects, newest first within each project
+   */
+  @NotNull
+  public static List<String> commitsOfTask(long taskId) {
+    List<String> commits = Collections.emptyList();
+    for (Project project : ProjectManager.getInstance().getOpenProjects()) {
+      if (project.isDisposed()) {
+        continue;
+      }
+      List<String> ofProject = getInstance(project).commitsOf(taskId);
+      if (!ofProject.isEmpty()) {
+        if (commits.isEmpty()) {
+          commits = new ArrayList<String>(ofProject);
+        } else {
+          for (String commit : ofProject) {
+            if (!commits.contains(commit)) {
+              commits.add(commit);
+            }
+          }
+        }
+      }
+    }
+    return commits;
+  }
+
+  @Override
+  public synchronized void projectOpened() {
+    VirtualFile baseDir = myProject.getBaseDir();
+    if (baseDir == null) {
+      return;
+    }
+    myRoot = new File(baseDir.getPath());
+    myFile = CommitIndex.fileFor(myRoot);
+
+    myScheduledUpdate = ourExecutor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        update();
+      }
+    }, 0, UPDATE_PERIOD_MINUTES, TimeUnit.MINUTES);
+  }
+
+  @Override
+  public synchronized void projectClosed() {
+    if (myScheduledUpdate != null) {
+      myScheduledUpdate.cancel(false);
+      myScheduledUpdate = null;
+    }
+  }
+
+  /**
+   * Reads the commits made since the last update and stores the index if anything was added, on the calling thread.
+   * Does nothing unless the project uses Kanbanery; if git can't tell the HEAD it's simply asked again next time.
+   */
+  public void update() {
+    File root = myRoot;
+    if (root == null || myProject.isDisposed() || !usesKanbanery()) {
+      return;
+    }
+
+    synchronized (myUpdateLock) {
+      if (myIndex.getHead() == null) {
+        myIndex = CommitIndex.readFrom(myFile);
+      }
+
+      try {
+        GitLog.head(root);
+        myLastProblem = null;
+      } catch (Exception e) {
+        String problem = String.valueOf(e.getMessage());
+        if (!problem.equals(myLastProblem)) {
+          LOG.info("Not indexing the commits of " + root + " for now: " + problem);
+          myLastProblem = problem;
+        }
+        return;
+      }
+
+      try {
+        long start = System.currentTimeMillis();
+        if (myIndex.update(root)) {
+          myIndex.writeTo(myFile);
+          LOG.info("Indexed the commits of " + root + " up to " + myIndex.getHead() + " in "
+                   + (System.currentTimeMillis() - start) + "ms, " + myIndex.size() + " of them mention tasks");
+        }
+      } catch (Exception e) {
+        LOG.info("Unable to index the commits of " + root + ", will try again later: " + e.getMessage());
+      }
+    }
+  }
+
+  private boolean usesKanbanery() {
+    for (TaskRepository repository : TaskManager.getManager(myProject).getAllRepositories()) {
+      if (repository instanceof KanbaneryRepository && ((KanbaneryRepository) repository).isConfigured()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public void initComponent() {
+  }
+
+  @Override
+  public void disposeComponent() {
+  }
+
+  @NotNull
+  @Override
+  public String getComponentName() {
+    return "KanbaneryCommitIndex";
+  }
+}
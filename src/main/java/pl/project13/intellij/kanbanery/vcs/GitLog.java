@@ -0,0 +1,191 @@
+package pl.project13.intellij.kanbanery.vcs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the history of a git repository by running the {@code git} executable, streaming one commit at a time
+ * so that even histories with hundreds of thousands of commits are never held in memory as a whole.
+ *
+ * @author Konrad Malawski
+ */
+final class GitLog {
+
+  /**
+   * the git executable to use, "git" from the PATH by default
+   */
+  static final String EXECUTABLE_PROPERTY = "kanbanery.git.executable";
+
+  private static final char FIELD_SEPARATOR = '\u0000';
+  private static final char RECORD_SEPARATOR = '\u001e';
+
+  private static final Pattern HASH = Pattern.compile("[0-9a-f]{40}");
+
+  /**
+   * how much of what git prints on stderr is kept for the failure message
+   */
+  private static final int MAX_ERROR_CHARS = 4096;
+
+  /**
+   * Called for every commit read, oldest first.
+   */
+  interface Handler {
+    void onCommit(@NotNull String hash, @NotNull String message);
+  }
+
+  private GitLog() {
+  }
+
+  /**
+   * @return the hash of the commit checked out in the repository containing {@code root}
+   */
+  @NotNull
+  static String head(@NotNull File root) throws IOException {
+    StringBuilder out = new StringBuilder();
+    run(root, out, "rev-parse", "HEAD");
+    String head = out.toString().trim();
+    if (!HASH.matcher(head).matches()) {
+      throw new IOException("git rev-parse HEAD did not answer with a commit hash: " + head);
+    }
+    return head;
+  }
+
+  /**
+   * Reads the commits reachable from {@code head}, oldest first, skipping those reachable from {@code since} if given.
+   * Fails if {@code since} is not known to the repository (anymore), e.g. because the history was rewritten and collected.
+   */
+  static void read(@NotNull File root, @Nullable String since, @NotNull String head, @NotNull Handler handler) throws IOException {
+    List<String> args = new ArrayList<String>();
+    args.add("log");
+    args.add("--reverse");
+    args.add("--format=%H" + "%x00" + "%B" + "%x1e");
+    args.add(since == null ? head : since + ".." + head);
+
+    Process process = start(root, args);
+    ErrorCollector errors = new ErrorCollector(process);
+    StringBuilder record = new StringBuilder();
+    Reader in = new InputStreamReader(process.getInputStream(), "UTF-8");
+    try {
+      char[] buffer = new char[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        for (int i = 0; i < read; i++) {
+          char c = buffer[i];
+          if (c == RECORD_SEPARATOR) {
+            onRecord(record, handler);
+            record.setLength(0);
+          } else {
+            record.append(c);
+          }
+        }
+      }
+    } finally {
+      in.close();
+    }
+
+    waitFor(process, args, errors);
+  }
+
+  private static void onRecord(StringBuilder record, Handler handler) {
+    int separator = record.indexOf(String.valueOf(FIELD_SEPARATOR));
+    if (separator < 0) {
+      return;
+    }
+    String hash = record.substring(0, separator).trim();
+    if (!HASH.matcher(hash).matches()) {
+      return;
+    }
+    String message = record.substring(separator + 1);
+    handler.onCommit(hash, message);
+  }
+
+  private static void run(File root, StringBuilder out, String... args) throws IOException {
+    List<String> command = Arrays.asList(args);
+
+    Process process = start(root, command);
+    ErrorCollector errors = new ErrorCollector(process);
+    Reader in = new InputStreamReader(process.getInputStream(), "UTF-8");
+    try {
+      char[] buffer = new char[1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.append(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    waitFor(process, command, errors);
+  }
+
+  private static Process start(File root, List<String> args) throws IOException {
+    List<String> command = new ArrayList<String>(args.size() + 1);
+    command.add(System.getProperty(EXECUTABLE_PROPERTY, "git"));
+    command.addAll(args);
+
+    ProcessBuilder builder = new ProcessBuilder(command);
+    builder.directory(root);
+    return builder.start();
+  }
+
+  private static void waitFor(Process process, List<String> args, ErrorCollector errors) throws IOException {
+    try {
+      int exitCode = process.waitFor();
+      if (exitCode != 0) {
+        throw new IOException("git " + args.get(0) + " failed with exit code " + exitCode + ": " + errors.getText());
+      }
+    } catch (InterruptedException e) {
+      process.destroy();
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for git " + args.get(0));
+    }
+  }
+
+  /**
+   * Reads what git prints on stderr while stdout is being read, so neither stream can fill up and block git.
+   * Only used for failure messages, never mixed into the output.
+   */
+  private static class ErrorCollector extends Thread {
+    private final InputStream myErrors;
+    private final StringBuilder myText = new StringBuilder();
+
+    ErrorCollector(Process process) {
+      super("git stderr");
+      myErrors = process.getErrorStream();
+      setDaemon(true);
+      start();
+    }
+
+    @Override
+    public void run() {
+      try {
+        Reader in = new InputStreamReader(myErrors, "UTF-8");
+        try {
+          char[] buffer = new char[1024];
+          int read;
+          while ((read = in.read(buffer)) != -1) {
+            synchronized (myText) {
+              myText.append(buffer, 0, Math.min(read, Math.max(0, MAX_ERROR_CHARS - myText.length())));
+            }
+          }
+        } finally {
+          in.close();
+        }
+      } catch (IOException ignore) {
+        // the process is gone, what was read so far has to do
+      }
+    }
+
+    String getText() throws InterruptedException {
+      join(1000);
+      synchronized (myText) {
+        return myText.toString().trim();
+      }
+    }
+  }
+}
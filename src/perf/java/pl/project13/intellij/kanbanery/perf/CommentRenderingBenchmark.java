@@ -0,0 +1,65 @@
+package pl.project13.intellij.kanbanery.perf;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.*;
+import pl.project13.intellij.kanbanery.model.KanbaneryComment;
+import pl.project13.janbanery.resources.Comment;
+import pl.project13.janbanery.resources.User;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering the comment thread of a task, as done for the task info (CTRL + Q): the first time, and again for a task
+ * already seen.
+ *
+ * @author Konrad Malawski
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Didea.system.path=target/perf-system"})
+public class CommentRenderingBenchmark {
+
+  @Param({"5", "50"})
+  public int commentCount;
+
+  private List<Comment> myLoaded;
+  private Map<Long, User> myUsers;
+  private List<KanbaneryComment> myComments;
+
+  @Setup
+  public void setUp() {
+    SyntheticBoard board = new SyntheticBoard(1, 3, 42);
+
+    myUsers = new HashMap<Long, User>();
+    for (User user : board.getUsers()) {
+      myUsers.put(user.getId(), user);
+    }
+
+    myLoaded = board.commentsOf(board.getTasks().get(0), commentCount);
+    myComments = Lists.newArrayList(Lists.transform(myLoaded, KanbaneryComment.transformUsing(myUsers)));
+  }
+
+  @Benchmark
+  public String firstRender() {
+    StringBuilder html = new StringBuilder();
+    for (KanbaneryComment comment : Lists.transform(myLoaded, KanbaneryComment.transformUsing(myUsers))) {
+      comment.appendTo(html);
+    }
+    return html.toString();
+  }
+
+  @Benchmark
+  public String appendTo() {
+    StringBuilder html = new StringBuilder();
+    for (KanbaneryComment comment : myComments) {
+      comment.appendTo(html);
+    }
+    return html.toString();
+  }
+}
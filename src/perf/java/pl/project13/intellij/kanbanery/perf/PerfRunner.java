@@ -0,0 +1,25 @@
+package pl.project13.intellij.kanbanery.perf;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all benchmarks with the GC profiler, so allocation rates are reported next to throughput.
+ * Pass a regular expression to run only some of them, e.g. {@code TaskPipelineBenchmark.search}.
+ *
+ * @author Konrad Malawski
+ */
+public class PerfRunner {
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+        .include(args.length > 0 ? args[0] : PerfRunner.class.getPackage().getName() + ".*Benchmark.*")
+        .addProfiler(GCProfiler.class)
+        .build();
+
+    new Runner(options).run();
+  }
+}
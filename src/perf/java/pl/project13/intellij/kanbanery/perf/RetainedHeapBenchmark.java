@@ -0,0 +1,98 @@
+package pl.project13.intellij.kanbanery.perf;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.*;
+import pl.project13.intellij.kanbanery.model.KanbaneryTask;
+import pl.project13.intellij.kanbanery.sync.BoardMetadata;
+import pl.project13.intellij.kanbanery.sync.TaskStore;
+import pl.project13.janbanery.resources.Column;
+import pl.project13.janbanery.resources.TaskType;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How much heap the tasks of a board keep after they were loaded: as the Janbanery resources (what every task used to
+ * hold on to), as compact {@link KanbaneryTask}s, and in a {@link TaskStore} with its search index.
+ * <p/>
+ * Every iteration builds a fresh board, keeps only what is measured and prints the heap used afterwards (after a full GC)
+ * minus the heap used before, per task. The GC profiler of {@link PerfRunner} adds what building it allocated.
+ *
+ * @author Konrad Malawski
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Didea.system.path=target/perf-system", "-Xmx1g"})
+public class RetainedHeapBenchmark {
+
+  private static final String BOARD = "workspace/project";
+
+  @Param({"100000"})
+  public int boardSize;
+
+  private final MemoryMXBean myMemory = ManagementFactory.getMemoryMXBean();
+
+  private long myUsedBefore;
+
+  /**
+   * what is measured, kept until the iteration is over
+   */
+  private Object myRetained;
+
+  @Setup(Level.Iteration)
+  public void measureBefore() {
+    myRetained = null;
+    myUsedBefore = usedAfterGc();
+  }
+
+  @TearDown(Level.Iteration)
+  public void measureAfter() {
+    long retained = usedAfterGc() - myUsedBefore;
+    System.out.println();
+    System.out.println("retained by " + boardSize + " tasks: " + retained / 1024 + " KB, " + retained / boardSize + " bytes per task");
+    myRetained = null;
+  }
+
+  @Benchmark
+  public Object janbaneryTasks() {
+    myRetained = new SyntheticBoard(boardSize, 50, 42).getTasks();
+    return myRetained;
+  }
+
+  @Benchmark
+  public Object compactTasks() {
+    SyntheticBoard board = new SyntheticBoard(boardSize, 50, 42);
+    Map<Long, TaskType> taskTypes = new HashMap<Long, TaskType>();
+    for (TaskType taskType : board.getTaskTypes()) {
+      taskTypes.put(taskType.getId(), taskType);
+    }
+
+    myRetained = Lists.newArrayList(Lists.transform(board.getTasks(), KanbaneryTask.transform(taskTypes)));
+    return myRetained;
+  }
+
+  @Benchmark
+  public Object taskStore() {
+    SyntheticBoard board = new SyntheticBoard(boardSize, 50, 42);
+    BoardMetadata metadata = new BoardMetadata(board.getTaskTypes(), board.getUsers(), Collections.<Column>emptyList(), 1);
+
+    TaskStore store = new TaskStore();
+    store.merge(board.getTasks(), metadata, BOARD);
+    myRetained = store;
+    return myRetained;
+  }
+
+  private long usedAfterGc() {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return myMemory.getHeapMemoryUsage().getUsed();
+  }
+}
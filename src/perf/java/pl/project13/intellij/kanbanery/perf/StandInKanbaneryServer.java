@@ -0,0 +1,551 @@
+package pl.project13.intellij.kanbanery.perf;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import pl.project13.intellij.kanbanery.cache.Digests;
+import pl.project13.janbanery.resources.Comment;
+import pl.project13.janbanery.resources.Task;
+import pl.project13.janbanery.resources.TaskType;
+import pl.project13.janbanery.resources.User;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the parts of the Kanbanery REST API Janbanery uses, from generated {@link SyntheticBoard}s,
+ * so the repository can be measured and broken on purpose without kanbanery.com.
+ * <p/>
+ * Point a repository at it with its api url, or for all repositories at once with
+ * {@code -Dkanbanery.api.url=http://localhost:<port>/}. Workspaces are the first path segment,
+ * as there are no subdomains: {@code /<workspace>/api/v1/projects/<id>/tasks.json}.
+ * <p/>
+ * Latency, server errors and rate limiting (429 with Retry-After) can be changed while it's running.
+ * GETs are answered with ETags (and 304s for unchanged resources) and gzipped for clients that accept it.
+ *
+ * @author Konrad Malawski
+ */
+public class StandInKanbaneryServer {
+
+  public static final String API_KEY = "stand-in-api-key";
+
+  private static final Pattern TOKEN = Pattern.compile("/api/v1/user/token\\.json");
+  private static final Pattern USER = Pattern.compile("/api/v1/user\\.json");
+  private static final Pattern WORKSPACES = Pattern.compile("/api/v1/user/workspaces\\.json");
+  private static final Pattern PROJECT_RESOURCE = Pattern.compile("/([^/]+)/api/v1/projects/(\\d+)/(tasks|task_types|users|columns)\\.json");
+  private static final Pattern TASK = Pattern.compile("/([^/]+)/api/v1/tasks/(\\d+)\\.json");
+  private static final Pattern COMMENTS = Pattern.compile("/([^/]+)/api/v1/tasks/(\\d+)/comments\\.json");
+  private static final Pattern READY_TO_PULL = Pattern.compile("ready_to_pull[\\]\"]*\\s*[=:]\\s*\"?(true|false|1|0)");
+
+  private static final DateTimeFormatter DATES = ISODateTimeFormat.dateTimeNoMillis();
+
+  private final HttpServer myServer;
+  private final ExecutorService myExecutor = Executors.newCachedThreadPool();
+  private final Random myRandom = new Random();
+
+  private final Map<String, Workspace> myWorkspaces = new LinkedHashMap<String, Workspace>();
+  private final ConcurrentMap<Long, Project> myTaskOwners = new ConcurrentHashMap<Long, Project>();
+
+  private volatile int myMinLatencyMillis;
+  private volatile int myMaxLatencyMillis;
+  private volatile double myErrorRate;
+  private volatile int myRequestsPerSecond;
+  private volatile int myRetryAfterSeconds = 1;
+
+  private long myWindowStart;
+  private int myWindowRequests;
+
+  private final AtomicLong myRequests = new AtomicLong();
+  private final AtomicLong myErrors = new AtomicLong();
+  private final AtomicLong myThrottled = new AtomicLong();
+  private final AtomicLong myBytesSent = new AtomicLong();
+  private final AtomicLong myNotModified = new AtomicLong();
+  private final ConcurrentMap<String, AtomicLong> myRequestsByResource = new ConcurrentHashMap<String, AtomicLong>();
+
+  /**
+   * @param port 0 picks a free one, see {@link #getBaseUrl()}
+   */
+  public StandInKanbaneryServer(int port) throws IOException {
+    myServer = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+    myServer.setExecutor(myExecutor);
+    myServer.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          serve(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+  }
+
+  /**
+   * Adds a project (and its workspace, if it's a new one) serving the given board.
+   */
+  public synchronized StandInKanbaneryServer addProject(String workspaceName, String projectName, SyntheticBoard board) {
+    Workspace workspace = myWorkspaces.get(workspaceName);
+    if (workspace == null) {
+      workspace = new Workspace(myWorkspaces.size() + 1, workspaceName);
+      myWorkspaces.put(workspaceName, workspace);
+    }
+
+    Project project = new Project(workspace.id * 1000 + workspace.projects.size() + 1, projectName, board);
+    workspace.projects.add(project);
+    for (Task task : board.getTasks()) {
+      myTaskOwners.put(task.getId(), project);
+    }
+    return this;
+  }
+
+  /**
+   * Every response is delayed by a random time in between.
+   */
+  public void setLatencyMillis(int minLatencyMillis, int maxLatencyMillis) {
+    myMinLatencyMillis = minLatencyMillis;
+    myMaxLatencyMillis = Math.max(minLatencyMillis, maxLatencyMillis);
+  }
+
+  /**
+   * @param errorRate fraction of requests answered with a 500, 0 to 1
+   */
+  public void setErrorRate(double errorRate) {
+    myErrorRate = errorRate;
+  }
+
+  /**
+   * @param requestsPerSecond requests above this within a second get a 429, 0 for no limit
+   */
+  public void setRateLimit(int requestsPerSecond, int retryAfterSeconds) {
+    myRequestsPerSecond = requestsPerSecond;
+    myRetryAfterSeconds = retryAfterSeconds;
+  }
+
+  public StandInKanbaneryServer start() {
+    myServer.start();
+    return this;
+  }
+
+  public void stop() {
+    myServer.stop(0);
+    myExecutor.shutdownNow();
+  }
+
+  /**
+   * @return the url to use as the repository's api url, with a trailing slash
+   */
+  public String getBaseUrl() {
+    return "http://localhost:" + myServer.getAddress().getPort() + "/";
+  }
+
+  public long getRequestCount() {
+    return myRequests.get();
+  }
+
+  public long getErrorCount() {
+    return myErrors.get();
+  }
+
+  public long getThrottledCount() {
+    return myThrottled.get();
+  }
+
+  /**
+   * @return response bytes, as sent (compressed for clients accepting gzip)
+   */
+  public long getBytesSent() {
+    return myBytesSent.get();
+  }
+
+  /**
+   * @return how many requests were answered with a 304
+   */
+  public long getNotModifiedCount() {
+    return myNotModified.get();
+  }
+
+  /**
+   * @return how many requests were made for e.g. "tasks", "task", "comments", "workspaces"
+   */
+  public long getRequestCount(String resource) {
+    AtomicLong count = myRequestsByResource.get(resource);
+    return count == null ? 0 : count.get();
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    myRequests.incrementAndGet();
+    delay();
+
+    if (throttled()) {
+      myThrottled.incrementAndGet();
+      exchange.getResponseHeaders().add("Retry-After", String.valueOf(myRetryAfterSeconds));
+      respond(exchange, 429, error("Rate limit exceeded"));
+      return;
+    }
+    if (myErrorRate > 0 && nextDouble() < myErrorRate) {
+      myErrors.incrementAndGet();
+      respond(exchange, 500, error("Injected failure"));
+      return;
+    }
+
+    String path = exchange.getRequestURI().getPath();
+    if (TOKEN.matcher(path).matches()) {
+      count("token");
+      if (!authorized(exchange, true)) {
+        respond(exchange, 401, error("Invalid credentials"));
+        return;
+      }
+      JsonObject token = new JsonObject();
+      token.addProperty("api_token", API_KEY);
+      respond(exchange, 200, token);
+      return;
+    }
+
+    if (!authorized(exchange, false)) {
+      respond(exchange, 401, error("Unauthorized"));
+      return;
+    }
+
+    Matcher matcher;
+    if (USER.matcher(path).matches()) {
+      count("user");
+      JsonObject user = new JsonObject();
+      user.addProperty("id", 1);
+      user.addProperty("email", "stand-in@example.com");
+      user.addProperty("first_name", "Stand");
+      user.addProperty("last_name", "In");
+      user.addProperty("api_token", API_KEY);
+      respond(exchange, 200, user);
+    } else if (WORKSPACES.matcher(path).matches()) {
+      count("workspaces");
+      respond(exchange, 200, workspaces());
+    } else if ((matcher = PROJECT_RESOURCE.matcher(path)).matches()) {
+      count(matcher.group(3));
+      Project project = project(matcher.group(1), Long.parseLong(matcher.group(2)));
+      if (project == null) {
+        respond(exchange, 404, error("No such project"));
+      } else {
+        respond(exchange, 200, projectResource(project, matcher.group(3)));
+      }
+    } else if ((matcher = COMMENTS.matcher(path)).matches()) {
+      count("comments");
+      Task task = task(Long.parseLong(matcher.group(2)));
+      if (task == null) {
+        respond(exchange, 404, error("No such task"));
+      } else {
+        respond(exchange, 200, comments(task));
+      }
+    } else if ((matcher = TASK.matcher(path)).matches()) {
+      count("task");
+      Task task = task(Long.parseLong(matcher.group(2)));
+      if (task == null) {
+        respond(exchange, 404, error("No such task"));
+        return;
+      }
+      if ("PUT".equals(exchange.getRequestMethod())) {
+        count("mark");
+        Matcher readyToPull = READY_TO_PULL.matcher(read(exchange.getRequestBody()));
+        if (readyToPull.find()) {
+          synchronized (task) {
+            task.setReadyToPull("true".equals(readyToPull.group(1)) || "1".equals(readyToPull.group(1)));
+            task.setUpdatedAt(new DateTime());
+          }
+        }
+      }
+      respond(exchange, 200, task(task));
+    } else {
+      count("unknown");
+      respond(exchange, 404, error("Not served by the stand-in: " + path));
+    }
+  }
+
+  private void delay() {
+    int latency = myMinLatencyMillis;
+    if (myMaxLatencyMillis > myMinLatencyMillis) {
+      synchronized (myRandom) {
+        latency += myRandom.nextInt(myMaxLatencyMillis - myMinLatencyMillis + 1);
+      }
+    }
+    if (latency > 0) {
+      try {
+        Thread.sleep(latency);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private synchronized boolean throttled() {
+    if (myRequestsPerSecond <= 0) {
+      return false;
+    }
+
+    long now = System.currentTimeMillis();
+    if (now - myWindowStart >= 1000) {
+      myWindowStart = now;
+      myWindowRequests = 0;
+    }
+    return ++myWindowRequests > myRequestsPerSecond;
+  }
+
+  private double nextDouble() {
+    synchronized (myRandom) {
+      return myRandom.nextDouble();
+    }
+  }
+
+  /**
+   * The api key header, or basic auth with any user and password (which only the token endpoint accepts).
+   */
+  private boolean authorized(HttpExchange exchange, boolean acceptBasic) {
+    if (API_KEY.equals(exchange.getRequestHeaders().getFirst("X-Kanbanery-ApiToken"))) {
+      return true;
+    }
+    String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+    return acceptBasic && authorization != null && authorization.startsWith("Basic ");
+  }
+
+  private void count(String resource) {
+    AtomicLong count = myRequestsByResource.get(resource);
+    if (count == null) {
+      AtomicLong created = new AtomicLong();
+      count = myRequestsByResource.putIfAbsent(resource, created);
+      if (count == null) {
+        count = created;
+      }
+    }
+    count.incrementAndGet();
+  }
+
+  private synchronized JsonArray workspaces() {
+    JsonArray workspaces = new JsonArray();
+    for (Workspace workspace : myWorkspaces.values()) {
+      JsonObject json = new JsonObject();
+      json.addProperty("id", workspace.id);
+      json.addProperty("name", workspace.name);
+
+      JsonArray projects = new JsonArray();
+      for (Project project : workspace.projects) {
+        JsonObject projectJson = new JsonObject();
+        projectJson.addProperty("id", project.id);
+        projectJson.addProperty("name", project.name);
+        projects.add(projectJson);
+      }
+      json.add("projects", projects);
+      workspaces.add(json);
+    }
+    return workspaces;
+  }
+
+  private synchronized Project project(String workspaceName, long projectId) {
+    Workspace workspace = myWorkspaces.get(workspaceName);
+    if (workspace == null) {
+      return null;
+    }
+    for (Project project : workspace.projects) {
+      if (project.id == projectId) {
+        return project;
+      }
+    }
+    return null;
+  }
+
+  private Task task(long taskId) {
+    Project project = myTaskOwners.get(taskId);
+    return project == null ? null : project.tasks.get(taskId);
+  }
+
+  private JsonArray projectResource(Project project, String resource) {
+    JsonArray array = new JsonArray();
+    if ("tasks".equals(resource)) {
+      for (Task task : project.board.getTasks()) {
+        array.add(task(task));
+      }
+    } else if ("task_types".equals(resource)) {
+      for (TaskType taskType : project.board.getTaskTypes()) {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", taskType.getId());
+        json.addProperty("name", taskType.getName());
+        json.addProperty("color_code", 1);
+        array.add(json);
+      }
+    } else if ("users".equals(resource)) {
+      for (User user : project.board.getUsers()) {
+        array.add(user(user));
+      }
+    } else {
+      String[] columns = {"Icebox", "Backlog", "In progress", "Done"};
+      for (int i = 0; i < columns.length; i++) {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", project.id * 10 + i);
+        json.addProperty("name", columns[i]);
+        json.addProperty("position", i + 1);
+        json.addProperty("project_id", project.id);
+        array.add(json);
+      }
+    }
+    return array;
+  }
+
+  private JsonObject task(Task task) {
+    JsonObject json = new JsonObject();
+    synchronized (task) {
+      json.addProperty("id", task.getId());
+      json.addProperty("title", task.getTitle());
+      json.addProperty("description", task.getDescription());
+      json.addProperty("task_type_id", task.getTaskTypeId());
+      json.addProperty("ready_to_pull", task.getReadyToPull());
+      json.addProperty("created_at", DATES.print(task.getCreatedAt()));
+      json.addProperty("updated_at", DATES.print(task.getUpdatedAt()));
+    }
+    return json;
+  }
+
+  private JsonObject user(User user) {
+    JsonObject json = new JsonObject();
+    json.addProperty("id", user.getId());
+    json.addProperty("first_name", user.getFirstName());
+    json.addProperty("last_name", user.getLastName());
+    json.addProperty("email", user.getEmail());
+    json.addProperty("gravatar_url", user.getGravatarUrl());
+    return json;
+  }
+
+  private JsonArray comments(Task task) {
+    Project project = myTaskOwners.get(task.getId());
+    JsonArray array = new JsonArray();
+    for (Comment comment : project.board.commentsOf(task, (int) (task.getId() % 5))) {
+      JsonObject json = new JsonObject();
+      json.addProperty("id", comment.getId());
+      json.addProperty("body", comment.getBody());
+      json.addProperty("author_id", comment.getAuthorId());
+      json.addProperty("task_id", comment.getTaskId());
+      json.addProperty("created_at", DATES.print(comment.getCreatedAt()));
+      array.add(json);
+    }
+    return array;
+  }
+
+  private JsonObject error(String message) {
+    JsonObject json = new JsonObject();
+    json.addProperty("error", message);
+    return json;
+  }
+
+  /**
+   * Successful GETs get an ETag and are answered with a 304 if the client already has that version,
+   * everything is gzipped for clients accepting it.
+   */
+  private void respond(HttpExchange exchange, int status, JsonElement body) throws IOException {
+    byte[] bytes = body.toString().getBytes("UTF-8");
+    if (status == 200 && "GET".equals(exchange.getRequestMethod())) {
+      String etag = "\"" + Digests.sha1(body.toString()) + "\"";
+      exchange.getResponseHeaders().add("ETag", etag);
+      if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+        myNotModified.incrementAndGet();
+        exchange.sendResponseHeaders(304, -1);
+        return;
+      }
+    }
+
+    String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+      ByteArrayOutputStream gzipped = new ByteArrayOutputStream(bytes.length / 4 + 64);
+      GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+      gzip.write(bytes);
+      gzip.close();
+      bytes = gzipped.toByteArray();
+      exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+    }
+
+    exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+    myBytesSent.addAndGet(bytes.length);
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      bytes.write(buffer, 0, read);
+    }
+    return bytes.toString("UTF-8");
+  }
+
+  private static class Workspace {
+    final long id;
+    final String name;
+    final List<Project> projects = new ArrayList<Project>();
+
+    Workspace(long id, String name) {
+      this.id = id;
+      this.name = name;
+    }
+  }
+
+  private static class Project {
+    final long id;
+    final String name;
+    final SyntheticBoard board;
+    final Map<Long, Task> tasks = new HashMap<Long, Task>();
+
+    Project(long id, String name, SyntheticBoard board) {
+      this.id = id;
+      this.name = name;
+      this.board = board;
+      for (Task task : board.getTasks()) {
+        tasks.put(task.getId(), task);
+      }
+    }
+  }
+
+  /**
+   * Runs a stand-in with one board until killed: {@code [port] [tasks] [latencyMillis] [errorRate] [requestsPerSecond]}.
+   */
+  public static void main(String[] args) throws IOException {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 8880;
+    int tasks = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+    StandInKanbaneryServer server = new StandInKanbaneryServer(port);
+    server.addProject("workspace", "project", new SyntheticBoard(tasks, 20, 42));
+    if (args.length > 2) {
+      int latency = Integer.parseInt(args[2]);
+      server.setLatencyMillis(latency / 2, latency * 3 / 2);
+    }
+    if (args.length > 3) {
+      server.setErrorRate(Double.parseDouble(args[3]));
+    }
+    if (args.length > 4) {
+      server.setRateLimit(Integer.parseInt(args[4]), 1);
+    }
+    server.start();
+
+    System.out.println("Serving " + tasks + " tasks of workspace/project at " + server.getBaseUrl()
+                           + ", api key: " + API_KEY + " (or any user and password)");
+  }
+}
@@ -0,0 +1,112 @@
+package pl.project13.intellij.kanbanery.perf;
+
+import org.joda.time.DateTime;
+import pl.project13.janbanery.resources.Comment;
+import pl.project13.janbanery.resources.Task;
+import pl.project13.janbanery.resources.TaskType;
+import pl.project13.janbanery.resources.User;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates boards of any size with Janbanery resources that look like real ones (titles, descriptions, types, users),
+ * always the same for the same seed so measurements can be compared between runs.
+ * Nothing in here points to the network.
+ *
+ * @author Konrad Malawski
+ */
+public class SyntheticBoard {
+
+  private static final String[] WORDS = {
+      "login", "crash", "report", "export", "invoice", "search", "filter", "cache", "sync", "board",
+      "column", "user", "avatar", "comment", "popup", "settings", "timeout", "retry", "render", "index",
+      "migrate", "upgrade", "refactor", "button", "layout", "dialog", "token", "session", "commit", "review"
+  };
+  private static final String[] TASK_TYPES = {"Bug", "New Feature", "Exception", "Chore", "Story"};
+
+  private final Random myRandom;
+  private final List<TaskType> myTaskTypes = new ArrayList<TaskType>();
+  private final List<User> myUsers = new ArrayList<User>();
+  private final List<Task> myTasks = new ArrayList<Task>();
+
+  public SyntheticBoard(int taskCount, int userCount, long seed) {
+    myRandom = new Random(seed);
+
+    for (int i = 0; i < TASK_TYPES.length; i++) {
+      TaskType taskType = new TaskType();
+      taskType.setId(100L + i);
+      taskType.setName(TASK_TYPES[i]);
+      myTaskTypes.add(taskType);
+    }
+
+    for (int i = 0; i < userCount; i++) {
+      User user = new User();
+      user.setId(1000L + i);
+      user.setFirstName("First" + i);
+      user.setLastName("Last" + i);
+      user.setEmail("user" + i + "@example.com");
+      // no gravatar url, so rendering never starts avatar downloads in the middle of a measurement
+      myUsers.add(user);
+    }
+
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < taskCount; i++) {
+      Task task = new Task();
+      task.setId(10000L + i);
+      task.setTitle(sentence(3 + myRandom.nextInt(6)));
+      task.setDescription(sentence(10 + myRandom.nextInt(40)));
+      TaskType taskType = myTaskTypes.get(myRandom.nextInt(myTaskTypes.size()));
+      task.setTaskTypeId(taskType.getId());
+      task.setReadyToPull(myRandom.nextInt(5) == 0);
+      task.setCreatedAt(new DateTime(now - 1000L * myRandom.nextInt(10000000)));
+      task.setUpdatedAt(new DateTime(now - 1000L * myRandom.nextInt(100000)));
+      myTasks.add(task);
+    }
+  }
+
+  public List<Task> getTasks() {
+    return myTasks;
+  }
+
+  public List<TaskType> getTaskTypes() {
+    return myTaskTypes;
+  }
+
+  public List<User> getUsers() {
+    return myUsers;
+  }
+
+  public List<Comment> commentsOf(Task task, int count) {
+    List<Comment> comments = new ArrayList<Comment>(count);
+    for (int i = 0; i < count; i++) {
+      Comment comment = new Comment();
+      comment.setId(task.getId() * 100 + i);
+      comment.setBody(sentence(5 + myRandom.nextInt(30)));
+      comment.setAuthorId(myUsers.get(myRandom.nextInt(myUsers.size())).getId());
+      comment.setTaskId(task.getId());
+      comment.setCreatedAt(new DateTime(task.getCreatedAt().getMillis() + 60000L * i));
+      comments.add(comment);
+    }
+    return comments;
+  }
+
+  /**
+   * @return a word that appears on the board, to build queries from
+   */
+  public String word(int i) {
+    return WORDS[i % WORDS.length];
+  }
+
+  private String sentence(int words) {
+    StringBuilder sentence = new StringBuilder();
+    for (int i = 0; i < words; i++) {
+      if (i > 0) {
+        sentence.append(' ');
+      }
+      sentence.append(WORDS[myRandom.nextInt(WORDS.length)]);
+    }
+    return sentence.toString();
+  }
+}
@@ -0,0 +1,114 @@
+package pl.project13.intellij.kanbanery.perf;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import pl.project13.intellij.kanbanery.model.KanbaneryTask;
+import pl.project13.intellij.kanbanery.sync.BoardMetadata;
+import pl.project13.intellij.kanbanery.sync.TaskStore;
+import pl.project13.janbanery.resources.Column;
+import pl.project13.janbanery.resources.TaskType;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What happens to the tasks of a board between downloading them and showing them in the task popup.
+ *
+ * @author Konrad Malawski
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Didea.system.path=target/perf-system"})
+public class TaskPipelineBenchmark {
+
+  private static final String BOARD = "workspace/project";
+
+  @Param({"1000", "10000", "100000"})
+  public int boardSize;
+
+  private SyntheticBoard myBoard;
+  private Map<Long, TaskType> myTaskTypes;
+  private BoardMetadata myMetadata;
+  private List<KanbaneryTask> myWrapped;
+  private TaskStore myStore;
+  private String[] myQueries;
+  private int myQuery;
+
+  @Setup
+  public void setUp() {
+    myBoard = new SyntheticBoard(boardSize, 50, 42);
+
+    myTaskTypes = new HashMap<Long, TaskType>();
+    for (TaskType taskType : myBoard.getTaskTypes()) {
+      myTaskTypes.put(taskType.getId(), taskType);
+    }
+    myMetadata = new BoardMetadata(myBoard.getTaskTypes(), myBoard.getUsers(), Collections.<Column>emptyList(), 1);
+
+    myWrapped = Lists.newArrayList(Lists.transform(myBoard.getTasks(), KanbaneryTask.transform(myTaskTypes)));
+
+    myStore = new TaskStore();
+    myStore.merge(myBoard.getTasks(), myMetadata, BOARD);
+
+    myQueries = new String[]{
+        myBoard.word(0).substring(0, 1),
+        myBoard.word(1).substring(0, 3),
+        myBoard.word(2),
+        myBoard.word(3) + " " + myBoard.word(4).substring(0, 2),
+        String.valueOf(myBoard.getTasks().get(boardSize / 2).getId())
+    };
+  }
+
+  /**
+   * The way getIssues used to turn the downloaded tasks into an array.
+   */
+  @Benchmark
+  public KanbaneryTask[] transformToArray() {
+    List<KanbaneryTask> tasks = Lists.transform(myBoard.getTasks(), KanbaneryTask.transform(myTaskTypes));
+    return tasks.toArray(new KanbaneryTask[tasks.size()]);
+  }
+
+  /**
+   * A full sync into an empty store (wrapping and indexing every task).
+   */
+  @Benchmark
+  public TaskStore mergeIntoEmptyStore() {
+    TaskStore store = new TaskStore();
+    store.merge(myBoard.getTasks(), myMetadata, BOARD);
+    return store;
+  }
+
+  /**
+   * A sync where nothing changed, which is what the background sync does most of the time.
+   */
+  @Benchmark
+  public int mergeUnchanged() {
+    return myStore.merge(myBoard.getTasks(), myMetadata, BOARD);
+  }
+
+  /**
+   * What the task popup and combo box ask every task for.
+   */
+  @Benchmark
+  public void presentableNameAndType(Blackhole blackhole) {
+    for (KanbaneryTask task : myWrapped) {
+      blackhole.consume(task.getPresentableName());
+      blackhole.consume(task.getType());
+    }
+  }
+
+  /**
+   * One keystroke in the task popup.
+   */
+  @Benchmark
+  public List<KanbaneryTask> search() {
+    String query = myQueries[myQuery++ % myQueries.length];
+    return myStore.search(query, 50, 0);
+  }
+}